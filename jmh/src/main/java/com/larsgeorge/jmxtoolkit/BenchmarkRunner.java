@@ -0,0 +1,47 @@
+/**
+ * Copyright 2010 Lars George
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larsgeorge.jmxtoolkit;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled, so that allocation
+ * rates are reported next to the throughput. All JMH command line options
+ * are supported, e.g. a regular expression selecting the benchmarks or
+ * <code>-p beans=1000</code> to override a parameter.
+ */
+public class BenchmarkRunner {
+
+  /**
+   * Main entry point.
+   *
+   * @param args  The JMH command line options.
+   * @throws Exception When running the benchmarks fails.
+   */
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+    Options options = new OptionsBuilder().
+      parent(cmd).
+      addProfiler(GCProfiler.class).
+      build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2010 Lars George
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larsgeorge.jmxtoolkit;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks parsing checks and evaluating them against numeric, string
+ * and range thresholds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckBenchmark {
+
+  private static final String CHECK =
+    "0:OK%3A+%7B0%7D|1:WARN%3A+%7B0%7D:80:>=|2:CRIT%3A+%7B0%7D:95:>";
+  private static final String RANGE_CHECK = "0|1::10:90|2::@95:100";
+  private static final String STRING_CHECK = "0|2:Down:Operational:!=";
+
+  private JMXToolkit toolkit;
+  private JMXToolkit.CheckDetails check;
+  private JMXToolkit.CheckDetails rangeCheck;
+  private JMXToolkit.CheckDetails stringCheck;
+  private Long numericValue = Long.valueOf(85);
+  private String stringValue = "85";
+
+  @Setup
+  public void setup() {
+    toolkit = new JMXToolkit(new String[] { "-a", "check" },
+      new PrintStream(new NullOutputStream()));
+    check = toolkit.new CheckDetails(CHECK);
+    rangeCheck = toolkit.new CheckDetails(RANGE_CHECK);
+    stringCheck = toolkit.new CheckDetails(STRING_CHECK);
+  }
+
+  @Benchmark
+  public JMXToolkit.CheckDetails parse() {
+    return toolkit.new CheckDetails(CHECK);
+  }
+
+  @Benchmark
+  public StringBuilder evaluateNumber() {
+    StringBuilder message = new StringBuilder();
+    check.evaluate(numericValue, message);
+    return message;
+  }
+
+  @Benchmark
+  public StringBuilder evaluateNumericString() {
+    StringBuilder message = new StringBuilder();
+    check.evaluate(stringValue, message);
+    return message;
+  }
+
+  @Benchmark
+  public int evaluateRange() {
+    return rangeCheck.evaluate(numericValue, new StringBuilder());
+  }
+
+  @Benchmark
+  public int evaluateString() {
+    return stringCheck.evaluate("Operational", new StringBuilder());
+  }
+}
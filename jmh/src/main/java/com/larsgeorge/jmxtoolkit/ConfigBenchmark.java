@@ -0,0 +1,143 @@
+/**
+ * Copyright 2010 Lars George
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larsgeorge.jmxtoolkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks loading configurations, both from the text and the compiled
+ * form, as well as parsing single lines and replacing variables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigBenchmark {
+
+  private static final String LINE =
+    "compactionQueueSize=INTEGER|0:OK%3A+%7B0%7D|1:WARN%3A+%7B0%7D:10:>|2:CRIT%3A+%7B0%7D:50:>";
+  private static final String URL =
+    "service:jmx:rmi:///jndi/rmi://${HOSTNAME1|localhost}:10102/jmxrmi";
+
+  @Param({ "10", "1000" })
+  public int sections;
+
+  private File text;
+  private File compiled;
+  private PrintStream out = new PrintStream(new NullOutputStream());
+  private JMXToolkit toolkit;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    text = File.createTempFile("jmxtk-text", ".properties");
+    writeConfig(text);
+    compiled = File.createTempFile("jmxtk-compiled", ".properties");
+    writeConfig(compiled);
+    JMXToolkit compiler = new JMXToolkit(new String[] { "-f", compiled.getPath(),
+      "-a", "compile" }, out);
+    compiler.readProperties();
+    compiler.writeCompiled(new File(compiled.getPath() + ".bin"));
+    toolkit = new JMXToolkit(new String[] { "-a", "query" }, out);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    text.delete();
+    compiled.delete();
+    new File(compiled.getPath() + ".bin").delete();
+  }
+
+  @Benchmark
+  public JMXToolkit readText() throws IOException {
+    JMXToolkit res = new JMXToolkit(new String[] { "-f", text.getPath() }, out);
+    res.readProperties();
+    return res;
+  }
+
+  @Benchmark
+  public JMXToolkit readCompiled() throws IOException {
+    JMXToolkit res = new JMXToolkit(new String[] { "-f", compiled.getPath() },
+      out);
+    res.readProperties();
+    return res;
+  }
+
+  @Benchmark
+  public JMXToolkit.Section parseLine() {
+    // a fresh section, so the member set does not grow across invocations
+    JMXToolkit.Section section = toolkit.new Section("[bench]");
+    toolkit.parseLine(section, LINE);
+    return section;
+  }
+
+  @Benchmark
+  public String replaceVariables() {
+    return toolkit.replaceVariables(URL, true, null);
+  }
+
+  /**
+   * Writes a configuration resembling a generated one for RegionServers.
+   *
+   * @param file  The file to write to.
+   * @throws IOException When writing the file fails.
+   */
+  private void writeConfig(File file) throws IOException {
+    PrintWriter writer = new PrintWriter(file, "UTF8");
+    try {
+      for (int n = 0; n < sections; n++) {
+        writer.println("[hbaseRegionServerStatistics" + n + "]");
+        writer.println("@object=hadoop:name=RegionServerStatistics,service=RegionServer");
+        writer.println("@url=service:jmx:rmi:///jndi/rmi://${HOSTNAME" + n +
+          "|localhost}:10102/jmxrmi");
+        writer.println("@user=${USER|controlRole}");
+        writer.println("@password=${PASSWORD|password}");
+        writer.println(LINE);
+        writer.println("flushQueueSize=INTEGER|0|1::10:>|2::50:>");
+        writer.println("blockCacheHitRatio=INTEGER|0|1::50:<|2::10:<");
+        writer.println("requests=FLOAT,COUNTER");
+        writer.println("regions=INTEGER");
+        writer.println("stores=INTEGER");
+        writer.println("storefiles=INTEGER");
+        writer.println("storefileIndexSizeMB=INTEGER");
+        writer.println("memstoreSizeMB=INTEGER");
+        writer.println("*resetAllMinMax=VOID");
+      }
+    } finally {
+      writer.close();
+    }
+  }
+}
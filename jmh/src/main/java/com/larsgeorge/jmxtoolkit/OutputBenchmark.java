@@ -0,0 +1,77 @@
+/**
+ * Copyright 2010 Lars George
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larsgeorge.jmxtoolkit;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks writing the values of a section in each output format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputBenchmark {
+
+  @Param({ "10", "100" })
+  public int members;
+
+  @Param({ "cacti", "json", "csv", "graphite" })
+  public String format;
+
+  private JMXToolkit.Section section;
+  private JMXToolkit.OutputWriter writer;
+
+  @Setup
+  public void setup() throws Exception {
+    JMXToolkit toolkit = new JMXToolkit(new String[] { "-a", "query",
+      "-u", "service:jmx:rmi:///jndi/rmi://bench:10001/jmxrmi", "-O", format },
+      new PrintStream(new NullOutputStream()));
+    writer = toolkit.createOutputWriter(false);
+    section = toolkit.new Section("[bench]");
+    section.setObject("bench:name=Bean0,type=Synthetic");
+    for (int n = 0; n < members; n++) {
+      JMXToolkit.MemberDetails details =
+        toolkit.new AttributeDetails("Counter" + n, "LONG");
+      section.add(details);
+      section.setValue(details, Long.valueOf(1234567L * n));
+    }
+  }
+
+  @Benchmark
+  public JMXToolkit.OutputWriter writeValues() throws IOException {
+    writer.write(section, System.currentTimeMillis());
+    writer.finish();
+    return writer;
+  }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2010 Lars George
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larsgeorge.jmxtoolkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks a full query of all sections against an in-process simulator,
+ * reached over RMI like a remote server. The "warm" variant keeps the
+ * configuration and connections like the server modes do, the "cold" one
+ * starts from scratch like a single invocation does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+  @Param({ "10", "100" })
+  public int beans;
+
+  @Param({ "10", "50" })
+  public int attributes;
+
+  @Param({ "1", "8" })
+  public int threads;
+
+  private JMXSimulator simulator;
+  private File config;
+  private String[] args;
+  private JMXToolkit warm;
+  private PrintStream out = new PrintStream(new NullOutputStream());
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    config = File.createTempFile("jmxtk-query", ".properties");
+    writeConfig(config, getFreePort());
+    JMXToolkit server = new JMXToolkit(new String[] { "-f", config.getPath(),
+      "-a", "simulate" }, out);
+    server.readProperties();
+    simulator = server.createSimulator();
+    simulator.start();
+    args = new String[] { "-f", config.getPath(), "-a", "query",
+      "-P", String.valueOf(threads) };
+    warm = new JMXToolkit(args, out);
+    warm.readProperties();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    warm.closeConnections();
+    simulator.close();
+    config.delete();
+  }
+
+  @Benchmark
+  public JMXToolkit warmQuery() throws IOException {
+    warm.queryValues();
+    warm.outputResults();
+    return warm;
+  }
+
+  @Benchmark
+  public JMXToolkit coldQuery() throws IOException {
+    JMXToolkit toolkit = new JMXToolkit(args, out);
+    try {
+      toolkit.readProperties();
+      toolkit.queryValues();
+      toolkit.outputResults();
+    } finally {
+      toolkit.closeConnections();
+    }
+    return toolkit;
+  }
+
+  /**
+   * Writes a configuration with one section per MBean, listing all of its
+   * attributes, for the simulator and the toolkit alike.
+   */
+  private void writeConfig(File file, int port) throws IOException {
+    PrintWriter writer = new PrintWriter(file, "UTF8");
+    try {
+      for (int n = 0; n < beans; n++) {
+        writer.println("[bean" + n + "]");
+        writer.println("@object=bench:name=Bean" + n + ",type=Synthetic");
+        writer.println("@url=service:jmx:rmi:///jndi/rmi://localhost:" + port +
+          "/jmxrmi");
+        for (int a = 0; a < attributes; a++)
+          writer.println("Counter" + a + "=LONG");
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static int getFreePort() throws IOException {
+    ServerSocket socket = new ServerSocket(0);
+    try {
+      return socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,849 @@
+/**
+ * Copyright 2010 Lars George
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larsgeorge.jmxtoolkit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Stores sampled values in compressed, append-only segment files, one per
+ * day. Each series is identified by a key, and its points are collected in
+ * blocks that are compressed as described in the Gorilla paper: timestamps
+ * as delta-of-deltas and values as the XOR against the previous value. Full
+ * blocks are appended to the memory mapped segment, together with the
+ * definition of each series the first time it is used in a segment.
+ * <p>
+ * A segment starts with a header holding a magic number, the version and
+ * the length of the committed records. Records are either a series
+ * definition (type 1, id, key) or a block (type 2, id, count, first and last
+ * time, length, compressed bits). Readers skip blocks outside of the time
+ * range or of other series without decoding them.
+ * <p>
+ * Segments older than the retention are deleted when a new segment is
+ * opened. Rollup tiers use a store of their own each, see {@link Rollup}.
+ *
+ * @author Lars George
+ */
+class HistoryStore {
+
+  /**
+   * Receives the points read from the store.
+   */
+  interface Visitor {
+
+    /**
+     * Decides whether the points of a series are read.
+     *
+     * @param key  The key of the series.
+     * @return <code>true</code> to read the series.
+     */
+    boolean accept(String key);
+
+    /**
+     * Receives a point of an accepted series.
+     *
+     * @param key  The key of the series.
+     * @param time  The time of the point in milliseconds.
+     * @param value  The value.
+     * @throws IOException When handling the point fails.
+     */
+    void point(String key, long time, double value) throws IOException;
+  }
+
+  static final long DAY = 24 * 60 * 60 * 1000L;
+  private static final int MAGIC = 0x4a545344;
+  private static final int VERSION = 1;
+  private static final int HEADER = 16;
+  private static final byte SERIES = 1;
+  private static final byte BLOCK = 2;
+  private static final int MAX_POINTS = 256;
+  static final long MAX_SPAN = 15 * 60 * 1000L;
+  private static final int INITIAL_SIZE = 1 << 20;
+  private static final int MAX_GROWTH = 64 << 20;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File dir;
+  private final long span;
+  private final long retention;
+  private final Map<String, Block> blocks = new HashMap<String, Block>();
+  private Segment segment = null;
+
+  /**
+   * Creates a store writing to the given directory, keeping all segments.
+   *
+   * @param dir  The directory holding the segments.
+   */
+  HistoryStore(File dir) {
+    this(dir, MAX_SPAN, 0);
+  }
+
+  /**
+   * Creates a store writing to the given directory.
+   *
+   * @param dir  The directory holding the segments.
+   * @param span  The maximum time covered by a block, in milliseconds.
+   * @param retention  The time to keep the segments for, in milliseconds, or
+   *   zero to keep them forever.
+   */
+  HistoryStore(File dir, long span, long retention) {
+    this.dir = dir;
+    this.span = span;
+    this.retention = retention;
+  }
+
+  /**
+   * Adds a point to a series. Points have to be added in time order per
+   * series, older points start a new block.
+   *
+   * @param key  The key of the series.
+   * @param time  The time in milliseconds.
+   * @param value  The value.
+   * @throws IOException When writing a full block fails.
+   */
+  synchronized void append(String key, long time, double value)
+  throws IOException {
+    long day = time / DAY;
+    if (segment != null && segment.day != day) {
+      flush();
+      segment.close();
+      segment = null;
+    }
+    Block block = blocks.get(key);
+    if (block != null && (block.count >= MAX_POINTS || time < block.last ||
+        time - block.first >= span || block.first / DAY != day)) {
+      writeBlock(key, block);
+      block = null;
+    }
+    if (block == null) {
+      block = new Block(time, value);
+      blocks.put(key, block);
+    } else {
+      block.add(time, value);
+    }
+  }
+
+  /**
+   * Writes all blocks, also those that are not full yet.
+   *
+   * @throws IOException When writing fails.
+   */
+  synchronized void flush() throws IOException {
+    for (Map.Entry<String, Block> entry : blocks.entrySet())
+      writeBlock(entry.getKey(), entry.getValue());
+    blocks.clear();
+  }
+
+  /**
+   * Writes all blocks and closes the current segment.
+   *
+   * @throws IOException When writing fails.
+   */
+  synchronized void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      if (segment != null) segment.close();
+      segment = null;
+    }
+  }
+
+  private void writeBlock(String key, Block block) throws IOException {
+    long day = block.first / DAY;
+    if (segment == null) {
+      if (retention > 0) expire(dir, System.currentTimeMillis() - retention);
+      segment = Segment.open(dir, day);
+    }
+    if (segment.day != day) {
+      // a block left over from before the day changed
+      Segment other = Segment.open(dir, day);
+      try {
+        other.append(key, block);
+      } finally {
+        other.close();
+      }
+    } else {
+      segment.append(key, block);
+    }
+  }
+
+  /**
+   * Reads the points of a time range. The points of each series are handed
+   * to the visitor in time order, one series after the other, sorted by
+   * their key.
+   *
+   * @param dir  The directory holding the segments.
+   * @param from  The start of the range in milliseconds, inclusive.
+   * @param until  The end of the range in milliseconds, inclusive.
+   * @param visitor  The visitor to select series and receive the points.
+   * @throws IOException When reading a segment fails.
+   */
+  static void read(File dir, long from, long until, Visitor visitor)
+  throws IOException {
+    Map<String, Points> series = new TreeMap<String, Points>();
+    for (File file : listSegments(dir, from / DAY, until / DAY)) {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        FileChannel channel = raf.getChannel();
+        if (channel.size() < HEADER) continue;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+          0, channel.size());
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+          System.err.println("WARNING: Ignoring invalid history segment -> " +
+            file);
+          continue;
+        }
+        readSegment(buffer, from, until, visitor, series);
+      } finally {
+        raf.close();
+      }
+    }
+    for (Map.Entry<String, Points> entry : series.entrySet()) {
+      Points points = entry.getValue();
+      points.sort();
+      for (int n = 0; n < points.size; n++)
+        visitor.point(entry.getKey(), points.times[n], points.values[n]);
+    }
+  }
+
+  private static void readSegment(ByteBuffer buffer, long from, long until,
+      Visitor visitor, Map<String, Points> series) {
+    long end = Math.min(buffer.getLong(8), buffer.capacity());
+    Map<Integer, Points> accepted = new HashMap<Integer, Points>();
+    buffer.position(HEADER);
+    while (buffer.position() < end) {
+      byte type = buffer.get();
+      int id = buffer.getInt();
+      if (type == SERIES) {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        String key = new String(bytes, UTF8);
+        if (visitor.accept(key)) {
+          Points points = series.get(key);
+          if (points == null) {
+            points = new Points();
+            series.put(key, points);
+          }
+          accepted.put(id, points);
+        }
+      } else if (type == BLOCK) {
+        int count = buffer.getInt();
+        long first = buffer.getLong();
+        long last = buffer.getLong();
+        int length = buffer.getInt();
+        Points points = accepted.get(id);
+        if (points != null && last >= from && first <= until) {
+          ByteBuffer bits = buffer.slice();
+          bits.limit(length);
+          decode(bits, count, first, from, until, points);
+        }
+        buffer.position(buffer.position() + length);
+      } else {
+        System.err.println("WARNING: Invalid history record at -> " +
+          (buffer.position() - 5));
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the segments of the given days.
+   *
+   * @param dir  The directory holding the segments.
+   * @param fromDay  The first day.
+   * @param untilDay  The last day.
+   * @return The segment files in the order of their names.
+   */
+  static List<File> listSegments(File dir, final long fromDay,
+      final long untilDay) {
+    File[] files = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File d, String name) {
+        if (!name.matches("\\d{8}(-\\d+)?\\.tsdb")) return false;
+        long day = parseDay(name.substring(0, 8));
+        return day >= fromDay && day <= untilDay;
+      }
+    });
+    List<File> res = new ArrayList<File>();
+    if (files == null) return res;
+    Arrays.sort(files);
+    res.addAll(Arrays.asList(files));
+    return res;
+  }
+
+  /**
+   * Deletes the segments of the days that ended before the given time.
+   *
+   * @param dir  The directory holding the segments.
+   * @param before  The time in milliseconds.
+   */
+  static void expire(File dir, long before) {
+    for (File file : listSegments(dir, 0, before / DAY - 1)) {
+      if (!file.delete())
+        System.err.println("WARNING: Could not delete expired history " +
+          "segment -> " + file);
+    }
+  }
+
+  /**
+   * Returns the start of the oldest segment.
+   *
+   * @param dir  The directory holding the segments.
+   * @return The time in milliseconds, or <code>Long.MAX_VALUE</code> if
+   *   there is no segment.
+   */
+  static long getOldest(File dir) {
+    List<File> files = listSegments(dir, 0, Long.MAX_VALUE / DAY);
+    if (files.size() == 0) return Long.MAX_VALUE;
+    return parseDay(files.get(0).getName().substring(0, 8)) * DAY;
+  }
+
+  static String formatDay(long day) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date(day * DAY));
+  }
+
+  static long parseDay(String name) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    try {
+      return format.parse(name).getTime() / DAY;
+    } catch (ParseException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Decodes the points of a block that fall into the given range.
+   */
+  private static void decode(ByteBuffer bytes, int count, long first,
+      long from, long until, Points points) {
+    BitInput in = new BitInput(bytes);
+    long time = first;
+    long delta = 0;
+    long bits = in.read(64);
+    int leading = 0;
+    int trailing = 0;
+    for (int n = 0; n < count; n++) {
+      if (n > 0) {
+        delta += readDelta(in);
+        time += delta;
+        if (in.read(1) == 1) {
+          if (in.read(1) == 1) {
+            leading = (int) in.read(5);
+            int significant = (int) in.read(6) + 1;
+            trailing = 64 - leading - significant;
+          }
+          bits ^= in.read(64 - leading - trailing) << trailing;
+        }
+      }
+      if (time > until) return;
+      if (time >= from) points.add(time, Double.longBitsToDouble(bits));
+    }
+  }
+
+  private static long readDelta(BitInput in) {
+    if (in.read(1) == 0) return 0;
+    if (in.read(1) == 0) return in.read(7) - 63;
+    if (in.read(1) == 0) return in.read(9) - 255;
+    if (in.read(1) == 0) return in.read(12) - 2047;
+    return (int) in.read(32);
+  }
+
+  /**
+   * Aggregates the points of each series into fixed windows as they are
+   * added, and stores the minimum, maximum, average, count and last value of
+   * each window as series of their own, with the name of the statistic
+   * appended to the key. A window is written when the first point of the
+   * next one arrives. The written windows are flushed to the segment and the
+   * open ones saved at most {@link HistoryStore#MAX_SPAN} apart, so that they
+   * can be read while sampling and survive a crash. Windows that are still
+   * open on close are saved and continued by the next process.
+   */
+  static class Rollup {
+    private final long window;
+    private final File file;
+    private final HistoryStore store;
+    private final Map<String, Window> windows = new HashMap<String, Window>();
+    private long flushed = System.currentTimeMillis();
+
+    /**
+     * Creates a rollup tier, reading the windows left open before.
+     *
+     * @param dir  The directory holding the segments of the tier.
+     * @param window  The length of the windows in milliseconds.
+     * @param retention  The time to keep the segments for, or zero.
+     * @throws IOException When reading the open windows fails.
+     */
+    Rollup(File dir, long window, long retention) throws IOException {
+      this.window = window;
+      this.file = new File(dir, "windows.bin");
+      this.store = new HistoryStore(dir, Math.max(window * MAX_POINTS, DAY),
+        retention);
+      if (file.exists()) readWindows();
+    }
+
+    long getWindow() {
+      return window;
+    }
+
+    /**
+     * Adds a point to the window of its series. Points older than the
+     * current window are ignored.
+     *
+     * @param key  The key of the series.
+     * @param time  The time in milliseconds.
+     * @param value  The value.
+     * @throws IOException When writing a finished window fails.
+     */
+    synchronized void add(String key, long time, double value)
+    throws IOException {
+      long start = time - time % window;
+      Window w = windows.get(key);
+      if (w != null && start != w.start) {
+        if (start < w.start) return;
+        write(key, w);
+        w = null;
+      }
+      if (w == null) {
+        w = new Window(start);
+        windows.put(key, w);
+      }
+      w.add(value);
+      if (time - flushed >= MAX_SPAN) flush(time);
+    }
+
+    /**
+     * Writes the finished windows to the segment and saves the open ones.
+     *
+     * @param now  The current time in milliseconds.
+     * @throws IOException When writing fails.
+     */
+    private void flush(long now) throws IOException {
+      store.flush();
+      writeWindows(windows);
+      flushed = now;
+    }
+
+    /**
+     * Writes the finished windows and saves the open ones.
+     *
+     * @throws IOException When writing fails.
+     */
+    synchronized void close() throws IOException {
+      long now = System.currentTimeMillis();
+      try {
+        Map<String, Window> open = new HashMap<String, Window>();
+        for (Map.Entry<String, Window> entry : windows.entrySet()) {
+          if (entry.getValue().start + window <= now)
+            write(entry.getKey(), entry.getValue());
+          else
+            open.put(entry.getKey(), entry.getValue());
+        }
+        windows.clear();
+        writeWindows(open);
+      } finally {
+        store.close();
+      }
+    }
+
+    private void write(String key, Window w) throws IOException {
+      store.append(key + "\tmin", w.start, w.min);
+      store.append(key + "\tmax", w.start, w.max);
+      store.append(key + "\tavg", w.start, w.sum / w.count);
+      store.append(key + "\tcount", w.start, w.count);
+      store.append(key + "\tlast", w.start, w.last);
+    }
+
+    private void writeWindows(Map<String, Window> open) throws IOException {
+      File tmp = new File(file.getPath() + ".tmp");
+      if (!file.getParentFile().exists()) file.getParentFile().mkdirs();
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(tmp)));
+      try {
+        out.writeInt(open.size());
+        for (Map.Entry<String, Window> entry : open.entrySet()) {
+          Window w = entry.getValue();
+          out.writeUTF(entry.getKey());
+          out.writeLong(w.start);
+          out.writeLong(w.count);
+          out.writeDouble(w.min);
+          out.writeDouble(w.max);
+          out.writeDouble(w.sum);
+          out.writeDouble(w.last);
+        }
+      } finally {
+        out.close();
+      }
+      Files.move(tmp.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void readWindows() throws IOException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file)));
+      try {
+        for (int n = in.readInt(); n > 0; n--) {
+          String key = in.readUTF();
+          Window w = new Window(in.readLong());
+          w.count = in.readLong();
+          w.min = in.readDouble();
+          w.max = in.readDouble();
+          w.sum = in.readDouble();
+          w.last = in.readDouble();
+          windows.put(key, w);
+        }
+      } catch (EOFException e) {
+        System.err.println("WARNING: Ignoring truncated rollup windows -> " +
+          file);
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * The aggregates of one series and window.
+   */
+  private static class Window {
+    private final long start;
+    private long count = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double sum = 0;
+    private double last = Double.NaN;
+
+    Window(long start) {
+      this.start = start;
+    }
+
+    void add(double value) {
+      count++;
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+      sum += value;
+      last = value;
+    }
+  }
+
+  /**
+   * The points of a series that is being written, compressed as they are
+   * added.
+   */
+  private static class Block {
+    private final BitOutput out = new BitOutput();
+    private final long first;
+    private long last;
+    private long delta = 0;
+    private long bits;
+    private int leading = -1;
+    private int trailing = 0;
+    private int count = 1;
+
+    Block(long time, double value) {
+      first = time;
+      last = time;
+      bits = Double.doubleToLongBits(value);
+      out.write(bits, 64);
+    }
+
+    void add(long time, double value) {
+      long d = time - last;
+      writeDelta(d - delta);
+      delta = d;
+      last = time;
+      long next = Double.doubleToLongBits(value);
+      long xor = next ^ bits;
+      bits = next;
+      count++;
+      if (xor == 0) {
+        out.write(0, 1);
+        return;
+      }
+      out.write(1, 1);
+      int lead = Math.min(Long.numberOfLeadingZeros(xor), 31);
+      int trail = Long.numberOfTrailingZeros(xor);
+      if (leading >= 0 && lead >= leading && trail >= trailing) {
+        // fits into the window of the previous value
+        out.write(0, 1);
+        out.write(xor >>> trailing, 64 - leading - trailing);
+      } else {
+        int significant = 64 - lead - trail;
+        out.write(1, 1);
+        out.write(lead, 5);
+        out.write(significant - 1, 6);
+        out.write(xor >>> trail, significant);
+        leading = lead;
+        trailing = trail;
+      }
+    }
+
+    private void writeDelta(long dod) {
+      if (dod == 0) {
+        out.write(0, 1);
+      } else if (dod >= -63 && dod <= 64) {
+        out.write(2, 2);
+        out.write(dod + 63, 7);
+      } else if (dod >= -255 && dod <= 256) {
+        out.write(6, 3);
+        out.write(dod + 255, 9);
+      } else if (dod >= -2047 && dod <= 2048) {
+        out.write(14, 4);
+        out.write(dod + 2047, 12);
+      } else {
+        out.write(15, 4);
+        out.write(dod, 32);
+      }
+    }
+  }
+
+  private static class BitOutput {
+    private byte[] bytes = new byte[32];
+    private long position = 0;
+
+    void write(long value, int count) {
+      for (int n = count - 1; n >= 0; n--) {
+        int index = (int) (position >>> 3);
+        if (index == bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        if (((value >>> n) & 1) != 0)
+          bytes[index] |= 1 << (7 - (int) (position & 7));
+        position++;
+      }
+    }
+
+    int length() {
+      return (int) ((position + 7) >>> 3);
+    }
+  }
+
+  private static class BitInput {
+    private final ByteBuffer bytes;
+    private long position = 0;
+
+    BitInput(ByteBuffer bytes) {
+      this.bytes = bytes;
+    }
+
+    long read(int count) {
+      long res = 0;
+      for (int n = 0; n < count; n++) {
+        int b = bytes.get((int) (position >>> 3));
+        res = (res << 1) | ((b >>> (7 - (int) (position & 7))) & 1);
+        position++;
+      }
+      return res;
+    }
+  }
+
+  /**
+   * The points read for a series.
+   */
+  private static class Points {
+    private long[] times = new long[64];
+    private double[] values = new double[64];
+    private int size = 0;
+    private boolean sorted = true;
+
+    void add(long time, double value) {
+      if (size == times.length) {
+        times = Arrays.copyOf(times, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      if (size > 0 && time < times[size - 1]) sorted = false;
+      times[size] = time;
+      values[size++] = value;
+    }
+
+    void sort() {
+      if (sorted) return;
+      // blocks of different segments may overlap, keep it simple
+      Integer[] order = new Integer[size];
+      for (int n = 0; n < size; n++) order[n] = n;
+      final long[] t = times;
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer o1, Integer o2) {
+          return t[o1] < t[o2] ? -1 : t[o1] > t[o2] ? 1 : 0;
+        }
+      });
+      long[] st = new long[size];
+      double[] sv = new double[size];
+      for (int n = 0; n < size; n++) {
+        st[n] = times[order[n]];
+        sv[n] = values[order[n]];
+      }
+      times = st;
+      values = sv;
+      sorted = true;
+    }
+  }
+
+  /**
+   * A segment file opened for appending. The file is locked while open, a
+   * second process writing the same day uses a segment of its own.
+   */
+  private static class Segment {
+    private final long day;
+    private final RandomAccessFile file;
+    private final FileLock lock;
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private MappedByteBuffer buffer;
+    private long end;
+
+    private Segment(long day, RandomAccessFile file, FileLock lock)
+    throws IOException {
+      this.day = day;
+      this.file = file;
+      this.lock = lock;
+      FileChannel channel = file.getChannel();
+      long size = channel.size();
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+        Math.max(size, INITIAL_SIZE));
+      if (size < HEADER || buffer.getInt(0) != MAGIC) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        end = HEADER;
+        buffer.putLong(8, end);
+      } else {
+        end = buffer.getLong(8);
+        readIds();
+      }
+    }
+
+    static Segment open(File dir, long day) throws IOException {
+      if (!dir.exists() && !dir.mkdirs())
+        throw new IOException("Could not create history directory -> " + dir);
+      String name = formatDay(day);
+      for (int n = 0; ; n++) {
+        File f = new File(dir, name + (n > 0 ? "-" + n : "") + ".tsdb");
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        FileLock lock = null;
+        try {
+          lock = raf.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+          // locked by this process already
+        }
+        if (lock != null) {
+          try {
+            return new Segment(day, raf, lock);
+          } catch (IOException e) {
+            lock.release();
+            raf.close();
+            throw e;
+          } catch (RuntimeException e) {
+            lock.release();
+            raf.close();
+            throw e;
+          }
+        }
+        raf.close();
+      }
+    }
+
+    private void readIds() {
+      ByteBuffer b = buffer.duplicate();
+      b.position(HEADER);
+      while (b.position() < end) {
+        byte type = b.get();
+        int id = b.getInt();
+        if (type == SERIES) {
+          byte[] bytes = new byte[b.getShort() & 0xffff];
+          b.get(bytes);
+          ids.put(new String(bytes, UTF8), id);
+        } else {
+          b.position(b.position() + 20);
+          int length = b.getInt();
+          b.position(b.position() + length);
+        }
+      }
+    }
+
+    void append(String key, Block block) throws IOException {
+      Integer id = ids.get(key);
+      if (id == null) {
+        id = ids.size();
+        byte[] bytes = key.getBytes(UTF8);
+        ensure(7 + bytes.length);
+        buffer.position((int) end);
+        buffer.put(SERIES).putInt(id).putShort((short) bytes.length).put(bytes);
+        ids.put(key, id);
+        commit();
+      }
+      int length = block.out.length();
+      ensure(29 + length);
+      buffer.position((int) end);
+      buffer.put(BLOCK).putInt(id).putInt(block.count).putLong(block.first).
+        putLong(block.last).putInt(length).put(block.out.bytes, 0, length);
+      commit();
+    }
+
+    private void ensure(int length) throws IOException {
+      if (end + length <= buffer.capacity()) return;
+      long size = buffer.capacity();
+      while (end + length > size) size += Math.min(size, MAX_GROWTH);
+      if (size > Integer.MAX_VALUE)
+        throw new IOException("History segment is full");
+      buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void commit() {
+      end = buffer.position();
+      buffer.putLong(8, end);
+    }
+
+    void close() throws IOException {
+      try {
+        buffer.force();
+        buffer = null;
+        file.getChannel().truncate(end);
+      } catch (IOException e) {
+        // the mapping may still be in use, readers rely on the header then
+      } finally {
+        lock.release();
+        file.close();
+      }
+    }
+  }
+}
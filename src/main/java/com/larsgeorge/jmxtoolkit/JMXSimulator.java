@@ -0,0 +1,788 @@
+/**
+ * Copyright 2010 Lars George
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larsgeorge.jmxtoolkit;
+
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.RuntimeOperationsException;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenMBeanAttributeInfoSupport;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Simulates JMX targets for scale and load testing. The MBeans are derived
+ * from the sections of a configuration, so that the toolkit can query the
+ * simulated endpoints with the same configuration as the real cluster.
+ * Counters grow over time, other numbers fluctuate, and attribute paths
+ * like <code>HeapMemoryUsage.used</code> are served as composite values.
+ * Latency, failures and beans that come and go can be injected.
+ *
+ * @author Lars George
+ */
+class JMXSimulator {
+
+  private static final Pattern PORT = Pattern.compile("//[^/:]*:(\\d+)/");
+  private static final Pattern COUNTERS = Pattern.compile(
+    "(?i).*(ops|count|total|requests|read|written)(_[\\d-]+)?$");
+  private static final Pattern WILDCARDS = Pattern.compile("\\.[*+]");
+  private static final int DEFAULT_PORT = 10001;
+
+  private final JMXToolkit toolkit;
+  private final List<JMXToolkit.Section> sections;
+  private final Integer port;
+  private final boolean verbose;
+  private final Random random = new Random();
+  private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+  private int count = 1;
+  private int copies = 1;
+  private int attributes = 10;
+  private long latency = 0;
+  private long jitter = 0;
+  private double failures = 0;
+  private long churn = 0;
+  private ScheduledExecutorService scheduler = null;
+
+  /**
+   * Creates a new simulator for the given sections.
+   *
+   * @param toolkit  The toolkit to resolve the URLs of the sections with.
+   * @param sections  The sections to derive the MBeans from.
+   * @param port  The first port to serve all sections on, or
+   *   <code>null</code> to serve each section on the port of its URL.
+   * @param options  The comma separated simulator options, may be
+   *   <code>null</code>.
+   * @param verbose  Whether to print what is simulated.
+   * @throws IllegalArgumentException When an option is not valid.
+   */
+  JMXSimulator(JMXToolkit toolkit, List<JMXToolkit.Section> sections,
+    Integer port, String options, boolean verbose) {
+    this.toolkit = toolkit;
+    this.sections = sections;
+    this.port = port;
+    this.verbose = verbose;
+    if (options == null) return;
+    for (String option : options.split(",")) {
+      if (option.trim().length() == 0) continue;
+      String[] kv = option.split("=", 2);
+      String key = kv[0].trim();
+      String val = kv.length > 1 ? kv[1].trim() : "";
+      try {
+        if (key.equals("endpoints")) count = Integer.parseInt(val);
+        else if (key.equals("copies")) copies = Integer.parseInt(val);
+        else if (key.equals("attributes")) attributes = Integer.parseInt(val);
+        else if (key.equals("latency")) latency = Long.parseLong(val);
+        else if (key.equals("jitter")) jitter = Long.parseLong(val);
+        else if (key.equals("failures")) failures = Double.parseDouble(val);
+        else if (key.equals("churn")) churn = Long.parseLong(val);
+        else throw new IllegalArgumentException(
+          "Unknown simulator option -> " + key);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException(
+          "Invalid simulator option -> " + option);
+      }
+    }
+  }
+
+  /**
+   * Starts the endpoints and serves them until the process is stopped.
+   *
+   * @throws IOException When starting an endpoint fails.
+   */
+  void run() throws IOException {
+    start();
+    try {
+      while (true) Thread.sleep(Long.MAX_VALUE);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * Starts the endpoints and registers the simulated MBeans.
+   *
+   * @throws IOException When starting an endpoint fails.
+   */
+  void start() throws IOException {
+    Map<Integer, List<Template>> ports = new TreeMap<Integer, List<Template>>();
+    Map<String, Template> templates = new LinkedHashMap<String, Template>();
+    for (JMXToolkit.Section section : sections) {
+      Template template = addTemplate(templates, section);
+      if (template == null) continue;
+      if (port != null) {
+        for (int n = 0; n < count; n++) addTemplate(ports, port + n, template);
+      } else {
+        addTemplate(ports, getPort(section), template);
+      }
+    }
+    for (Map.Entry<Integer, List<Template>> entry : ports.entrySet()) {
+      Endpoint endpoint = new Endpoint(entry.getKey());
+      endpoints.add(endpoint);
+      for (Template template : entry.getValue())
+        for (int n = 0; n < copies; n++) endpoint.register(template, n);
+      endpoint.start();
+      if (verbose) System.out.println("Simulating endpoint -> " +
+        endpoint.url + ", beans -> " + endpoint.beans.size());
+    }
+    if (churn > 0) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "churn");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          for (Endpoint endpoint : endpoints) endpoint.churn();
+        }
+      }, churn, churn, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Stops all endpoints.
+   */
+  void close() {
+    if (scheduler != null) scheduler.shutdownNow();
+    for (Endpoint endpoint : endpoints) endpoint.close();
+    endpoints.clear();
+  }
+
+  /**
+   * Returns the port of the section's URL, after replacing its variables, or
+   * the default port when no URL is given at all.
+   *
+   * @param section  The section to check.
+   * @return The port number.
+   * @throws IOException When the URL has no port.
+   */
+  private int getPort(JMXToolkit.Section section) throws IOException {
+    String url = toolkit.getConnectionDetails(section).getURL();
+    if (url == null) return DEFAULT_PORT;
+    Matcher m = PORT.matcher(url);
+    if (!m.find())
+      throw new IOException("No port in URL of section -> " +
+        section.getName() + ", " + url + " (use -s to set one)");
+    return Integer.parseInt(m.group(1));
+  }
+
+  private void addTemplate(Map<Integer, List<Template>> ports, int p,
+    Template template) {
+    List<Template> list = ports.get(p);
+    if (list == null) {
+      list = new ArrayList<Template>();
+      ports.put(p, list);
+    }
+    if (!list.contains(template)) list.add(template);
+  }
+
+  /**
+   * Adds the members of a section to the template for its simulated MBeans.
+   * Sections sharing an object are merged into one template, and sections
+   * without members get a number of generated counters and gauges, as well
+   * as a composite value.
+   *
+   * @param templates  The templates by object name.
+   * @param section  The section to simulate.
+   * @return The template, or <code>null</code> if it cannot be simulated.
+   */
+  private Template addTemplate(Map<String, Template> templates,
+    JMXToolkit.Section section) {
+    String object = section.getObject();
+    if (object == null && section.getRegexp() != null) {
+      // replace the wildcards with a name that varies with each instance
+      String rx = section.getRegexp();
+      if (rx.replaceAll("\\\\.", "").replaceAll("\\.[*+]", "").
+          matches(".*[\\[\\](){}|?^$\\\\].*")) {
+        System.err.println("WARNING: Cannot simulate regular expression -> " +
+          rx + ", section -> " + section.getName());
+        return null;
+      }
+      object = rx.replace("\\.", ".");
+    }
+    if (object == null) {
+      System.err.println("WARNING: Cannot simulate section without object -> " +
+        section.getName());
+      return null;
+    }
+    Template template = templates.get(object);
+    if (template == null) {
+      template = new Template(section.getName(), object);
+      templates.put(object, template);
+    }
+    if (section.getMembers().size() == 0) {
+      for (int n = 0; n < attributes; n++) {
+        if (n % 2 == 0) template.add("Counter" + n, JMXToolkit.ReturnTypes.LONG, true);
+        else template.add("Gauge" + n, JMXToolkit.ReturnTypes.DOUBLE, false);
+      }
+      template.add("Usage.used", JMXToolkit.ReturnTypes.LONG, false);
+      template.add("Usage.committed", JMXToolkit.ReturnTypes.LONG, false);
+      template.add("Usage.max", JMXToolkit.ReturnTypes.LONG, false);
+    }
+    for (JMXToolkit.MemberDetails details : section.getMembers()) {
+      boolean counter = details.isCounter() ||
+        COUNTERS.matcher(details.getName()).matches();
+      if (details instanceof JMXToolkit.OperationDetails) {
+        template.operations.put(details.getName(),
+          new Member(details.getName(), details.getReturnType(), counter));
+      } else {
+        template.add(details.getName(), details.getReturnType(), counter);
+      }
+    }
+    return template;
+  }
+
+  /**
+   * Holds the structure of the MBeans simulated for a section.
+   */
+  private class Template {
+
+    private final String name;
+    private final String object;
+    private final Node root = new Node();
+    private final Map<String, Member> operations =
+      new LinkedHashMap<String, Member>();
+    private Map<String, Member> attributes = null;
+
+    Template(String name, String object) {
+      this.name = name;
+      this.object = object;
+    }
+
+    void add(String path, JMXToolkit.ReturnTypes type, boolean counter) {
+      root.add(path, type, counter);
+      attributes = null;
+    }
+
+    Map<String, Member> getAttributes() {
+      if (attributes == null) {
+        attributes = new LinkedHashMap<String, Member>();
+        for (Map.Entry<String, Node> entry : root.children.entrySet())
+          attributes.put(entry.getKey(), entry.getValue().toMember(entry.getKey()));
+      }
+      return attributes;
+    }
+
+    /**
+     * Returns a new object name for a simulated instance. Wildcards of
+     * regular expressions are replaced by a random name, so that instances
+     * registered again appear as restarted beans.
+     *
+     * @param copy  The number of the copy, 0 for the configured name.
+     * @return The object name.
+     * @throws JMException When the name is not valid.
+     */
+    ObjectName getObjectName(int copy) throws JMException {
+      String res = WILDCARDS.matcher(object).
+        replaceAll(String.valueOf(10000 + random.nextInt(50000)));
+      if (copy > 0) res += ",sim=" + copy;
+      return new ObjectName(res);
+    }
+
+    SimulatedBean newBean() {
+      Map<String, Value> values = new LinkedHashMap<String, Value>();
+      List<MBeanAttributeInfo> ai = new ArrayList<MBeanAttributeInfo>();
+      for (Member member : getAttributes().values()) {
+        values.put(member.name, member.newValue());
+        ai.add(member.getAttributeInfo());
+      }
+      Map<String, Value> ops = new LinkedHashMap<String, Value>();
+      List<MBeanOperationInfo> oi = new ArrayList<MBeanOperationInfo>();
+      for (Member member : operations.values()) {
+        ops.put(member.name, member.newValue());
+        oi.add(new MBeanOperationInfo(member.name, "Simulated operation",
+          new MBeanParameterInfo[0], member.getTypeName(),
+          MBeanOperationInfo.INFO));
+      }
+      MBeanInfo info = new MBeanInfo(SimulatedBean.class.getName(),
+        "Simulated " + name, ai.toArray(new MBeanAttributeInfo[ai.size()]),
+        null, oi.toArray(new MBeanOperationInfo[oi.size()]), null);
+      return new SimulatedBean(info, values, ops);
+    }
+  }
+
+  /**
+   * Collects the attribute paths, so that the items of composites are
+   * grouped by their attribute.
+   */
+  private static class Node {
+
+    private final Map<String, Node> children = new LinkedHashMap<String, Node>();
+    private JMXToolkit.ReturnTypes type = JMXToolkit.ReturnTypes.NONE;
+    private boolean counter = false;
+
+    void add(String path, JMXToolkit.ReturnTypes type, boolean counter) {
+      Node node = this;
+      for (String part : path.split("\\.")) {
+        Node child = node.children.get(part);
+        if (child == null) {
+          child = new Node();
+          node.children.put(part, child);
+        }
+        node = child;
+      }
+      node.type = type;
+      node.counter = counter;
+    }
+
+    Member toMember(String name) {
+      Member member = new Member(name, type, counter);
+      for (Map.Entry<String, Node> entry : children.entrySet())
+        member.items.put(entry.getKey(),
+          entry.getValue().toMember(entry.getKey()));
+      return member;
+    }
+  }
+
+  /**
+   * Describes a simulated attribute, operation, or item of a composite.
+   */
+  private static class Member {
+
+    private final String name;
+    private final JMXToolkit.ReturnTypes type;
+    private final boolean counter;
+    private final Map<String, Member> items = new LinkedHashMap<String, Member>();
+    private CompositeType compositeType = null;
+
+    Member(String name, JMXToolkit.ReturnTypes type, boolean counter) {
+      this.name = name;
+      this.type = type;
+      this.counter = counter;
+    }
+
+    boolean isComposite() {
+      return items.size() > 0 || type == JMXToolkit.ReturnTypes.COMPOSITE;
+    }
+
+    String getTypeName() {
+      if (isComposite()) return CompositeData.class.getName();
+      switch (type) {
+        case CHAR: return "char";
+        case STRING: return String.class.getName();
+        case BYTE: return "byte";
+        case SHORT: return "short";
+        case INTEGER: return "int";
+        case DOUBLE: return "double";
+        case FLOAT: return "float";
+        case BOOLEAN: return "boolean";
+        case VOID: return "void";
+        default: return "long";
+      }
+    }
+
+    OpenType<?> getOpenType() throws OpenDataException {
+      if (isComposite()) {
+        if (compositeType == null) {
+          if (items.size() == 0) items.put("value",
+            new Member("value", JMXToolkit.ReturnTypes.LONG, counter));
+          String[] names = items.keySet().toArray(new String[items.size()]);
+          OpenType<?>[] types = new OpenType<?>[names.length];
+          for (int n = 0; n < names.length; n++)
+            types[n] = items.get(names[n]).getOpenType();
+          compositeType = new CompositeType(name, "Simulated " + name, names,
+            names, types);
+        }
+        return compositeType;
+      }
+      switch (type) {
+        case CHAR: return SimpleType.CHARACTER;
+        case STRING: return SimpleType.STRING;
+        case BYTE: return SimpleType.BYTE;
+        case SHORT: return SimpleType.SHORT;
+        case INTEGER: return SimpleType.INTEGER;
+        case DOUBLE: return SimpleType.DOUBLE;
+        case FLOAT: return SimpleType.FLOAT;
+        case BOOLEAN: return SimpleType.BOOLEAN;
+        case VOID: return SimpleType.VOID;
+        default: return SimpleType.LONG;
+      }
+    }
+
+    MBeanAttributeInfo getAttributeInfo() {
+      if (isComposite()) {
+        try {
+          return new OpenMBeanAttributeInfoSupport(name, "Simulated composite",
+            getOpenType(), true, false, false);
+        } catch (OpenDataException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      return new MBeanAttributeInfo(name, getTypeName(), "Simulated " +
+        (counter ? "counter" : "gauge"), true, false, false);
+    }
+
+    Value newValue() {
+      if (isComposite()) {
+        try {
+          CompositeType ct = (CompositeType) getOpenType();
+          String[] names = items.keySet().toArray(new String[items.size()]);
+          Value[] values = new Value[names.length];
+          for (int n = 0; n < names.length; n++)
+            values[n] = items.get(names[n]).newValue();
+          return new CompositeValue(ct, names, values);
+        } catch (OpenDataException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      switch (type) {
+        case CHAR: return new FixedValue(Character.valueOf('S'));
+        case STRING: return new FixedValue("simulated-" + name);
+        case BOOLEAN: return new FixedValue(Boolean.TRUE);
+        case VOID: return new FixedValue(null);
+        default: return counter ? new CounterValue(type) : new GaugeValue(type);
+      }
+    }
+  }
+
+  /**
+   * Produces the current value of a simulated member.
+   */
+  private static abstract class Value {
+
+    abstract Object get();
+
+    static Object convert(double val, JMXToolkit.ReturnTypes type) {
+      switch (type) {
+        case BYTE: return Byte.valueOf((byte) val);
+        case SHORT: return Short.valueOf((short) val);
+        case INTEGER: return Integer.valueOf((int) val);
+        case DOUBLE: return Double.valueOf(val);
+        case FLOAT: return Float.valueOf((float) val);
+        default: return Long.valueOf((long) val);
+      }
+    }
+  }
+
+  private static class FixedValue extends Value {
+
+    private final Object value;
+
+    FixedValue(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    Object get() {
+      return value;
+    }
+  }
+
+  /**
+   * A counter that grows at a random rate, starting at a random offset.
+   */
+  private static class CounterValue extends Value {
+
+    private final JMXToolkit.ReturnTypes type;
+    private final long created = System.currentTimeMillis();
+    private final double start;
+    private final double rate;
+
+    CounterValue(JMXToolkit.ReturnTypes type) {
+      this.type = type;
+      Random rnd = new Random();
+      // keep the small types from overflowing too soon
+      double max = type == JMXToolkit.ReturnTypes.BYTE ||
+        type == JMXToolkit.ReturnTypes.SHORT ? 10 : 1000;
+      this.start = rnd.nextInt((int) max * 100);
+      this.rate = 1 + rnd.nextDouble() * max;
+    }
+
+    @Override
+    Object get() {
+      return convert(start + rate *
+        (System.currentTimeMillis() - created) / 1000d, type);
+    }
+  }
+
+  /**
+   * A gauge that oscillates around a random base, with some noise.
+   */
+  private static class GaugeValue extends Value {
+
+    private final JMXToolkit.ReturnTypes type;
+    private final Random rnd = new Random();
+    private final double base;
+    private final double period;
+
+    GaugeValue(JMXToolkit.ReturnTypes type) {
+      this.type = type;
+      this.base = 10 + rnd.nextInt(100);
+      this.period = 60000 + rnd.nextInt(240000);
+    }
+
+    @Override
+    Object get() {
+      double phase = 2 * Math.PI * (System.currentTimeMillis() % (long) period) /
+        period;
+      double noise;
+      synchronized (rnd) {
+        noise = rnd.nextGaussian();
+      }
+      return convert(Math.max(0, base + base * 0.3 * Math.sin(phase) +
+        base * 0.05 * noise), type);
+    }
+  }
+
+  private static class CompositeValue extends Value {
+
+    private final CompositeType type;
+    private final String[] names;
+    private final Value[] values;
+
+    CompositeValue(CompositeType type, String[] names, Value[] values) {
+      this.type = type;
+      this.names = names;
+      this.values = values;
+    }
+
+    @Override
+    Object get() {
+      Object[] res = new Object[values.length];
+      for (int n = 0; n < values.length; n++) res[n] = values[n].get();
+      try {
+        return new CompositeDataSupport(type, names, res);
+      } catch (OpenDataException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /**
+   * A read-only MBean serving the simulated values, with the configured
+   * latency and failures.
+   */
+  private class SimulatedBean implements DynamicMBean {
+
+    private final MBeanInfo info;
+    private final Map<String, Value> values;
+    private final Map<String, Value> operations;
+
+    SimulatedBean(MBeanInfo info, Map<String, Value> values,
+      Map<String, Value> operations) {
+      this.info = info;
+      this.values = values;
+      this.operations = operations;
+    }
+
+    @Override
+    public Object getAttribute(String attribute)
+    throws AttributeNotFoundException, MBeanException {
+      delay();
+      if (isFailing()) throw new MBeanException(
+        new IOException("Simulated failure"), "Simulated failure");
+      Value value = values.get(attribute);
+      if (value == null) throw new AttributeNotFoundException(attribute);
+      return value.get();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      delay();
+      if (isFailing()) throw new RuntimeOperationsException(
+        new IllegalStateException("Simulated failure"), "Simulated failure");
+      AttributeList res = new AttributeList();
+      for (String attribute : attributes) {
+        Value value = values.get(attribute);
+        if (value != null) res.add(new Attribute(attribute, value.get()));
+      }
+      return res;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute)
+    throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("Read-only -> " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+    throws MBeanException, ReflectionException {
+      delay();
+      if (isFailing()) throw new MBeanException(
+        new IOException("Simulated failure"), "Simulated failure");
+      Value value = operations.get(actionName);
+      if (value == null)
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+      return value.get();
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      delay();
+      return info;
+    }
+  }
+
+  private void delay() {
+    if (latency <= 0 && jitter <= 0) return;
+    long ms = latency;
+    if (jitter > 0) {
+      synchronized (random) {
+        ms += (long) (random.nextDouble() * jitter);
+      }
+    }
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private boolean isFailing() {
+    if (failures <= 0) return false;
+    synchronized (random) {
+      return random.nextDouble() < failures;
+    }
+  }
+
+  /**
+   * A connector server on its own port and with its own MBean server.
+   */
+  private class Endpoint {
+
+    private final int port;
+    private final MBeanServer server = MBeanServerFactory.newMBeanServer();
+    private final Map<ObjectName, Registration> beans =
+      new LinkedHashMap<ObjectName, Registration>();
+    private final LinkedList<Registration> removed =
+      new LinkedList<Registration>();
+    private JMXServiceURL url = null;
+    private Registry registry = null;
+    private JMXConnectorServer connector = null;
+
+    Endpoint(int port) {
+      this.port = port;
+    }
+
+    void start() throws IOException {
+      registry = LocateRegistry.createRegistry(port);
+      url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:" +
+        port + "/jmxrmi");
+      connector = JMXConnectorServerFactory.newJMXConnectorServer(url, null,
+        server);
+      connector.start();
+    }
+
+    synchronized void register(Template template, int copy) {
+      try {
+        ObjectName on = template.getObjectName(copy);
+        server.registerMBean(template.newBean(), on);
+        beans.put(on, new Registration(template, copy));
+      } catch (JMException e) {
+        System.err.println("WARNING: Could not register simulated bean -> " +
+          template.object + ", section -> " + template.name + ", error -> " + e);
+      }
+    }
+
+    /**
+     * Removes a random bean, and brings back the one removed before.
+     */
+    synchronized void churn() {
+      if (removed.size() > 0) {
+        Registration reg = removed.removeFirst();
+        register(reg.template, reg.copy);
+      }
+      if (beans.size() == 0) return;
+      List<ObjectName> names = new ArrayList<ObjectName>(beans.keySet());
+      ObjectName on;
+      synchronized (random) {
+        on = names.get(random.nextInt(names.size()));
+      }
+      try {
+        server.unregisterMBean(on);
+        removed.add(beans.remove(on));
+        if (verbose) System.out.println("Churned bean -> " + on + ", port -> " +
+          port);
+      } catch (JMException e) {
+        System.err.println("WARNING: Could not unregister simulated bean -> " +
+          on + ", error -> " + e);
+      }
+    }
+
+    void close() {
+      try {
+        if (connector != null) connector.stop();
+      } catch (IOException e) {
+        // ignore
+      }
+      try {
+        if (registry != null) UnicastRemoteObject.unexportObject(registry, true);
+      } catch (NoSuchObjectException e) {
+        // ignore
+      }
+    }
+  }
+
+  private static class Registration {
+
+    private final Template template;
+    private final int copy;
+
+    Registration(Template template, int copy) {
+      this.template = template;
+      this.copy = copy;
+    }
+  }
+}
@@ -17,6 +17,10 @@
 package com.larsgeorge.jmxtoolkit;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -24,38 +28,109 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.Array;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.text.DecimalFormat;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.MessageFormat;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.management.Attribute;
+import javax.management.AttributeChangeNotification;
+import javax.management.AttributeNotFoundException;
+import javax.management.AttributeList;
 import javax.management.InstanceNotFoundException;
 import javax.management.IntrospectionException;
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanInfo;
 import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServerNotification;
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationBroadcaster;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
-import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenMBeanAttributeInfo;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.remote.JMXConnectionNotification;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 /**
  * Allows the creation of JMX attribute lists for given objects as well as
  * the actual query of the attribute values.
@@ -64,149 +139,304 @@ import javax.management.remote.JMXServiceURL;
  */
 public class JMXToolkit {
 
-  private static enum ReturnTypes { NONE, CHAR, STRING, BYTE, SHORT, INTEGER,
-    LONG, DOUBLE, FLOAT, BOOLEAN, VOID }
+  static enum ReturnTypes { NONE, CHAR, STRING, BYTE, SHORT, INTEGER,
+    LONG, DOUBLE, FLOAT, BOOLEAN, VOID, COMPOSITE }
   private static final Pattern VARS = Pattern.compile("\\$\\{\\S+\\}");
-  private static final DecimalFormat THRESH = new DecimalFormat("#.##########");
+  private static final int COMPILED_MAGIC = 0x4a544b43;
+  private static final int COMPILED_VERSION = 2;
+  private static final String COUNTER = "COUNTER";
+  private static final Pattern HOST = Pattern.compile("//([^:/]*)");
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+  private static final Object NO_ITEM = new Object();
+  private static final int NAGIOS_UNKNOWN = 3;
+  private static final long FLUSH_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+  private static final List<String> SERVE_ACTIONS =
+    Arrays.asList("query", "check", "checkall");
+  private static final String[] SERVE_FILE_OPTIONS = { "-f", "-N", "-S", "-T" };
   private static enum CompareResults { LOWER, LOWER_OR_EQUAL, EQUAL, NOT_EQUAL,
-    GREATER_OR_EQUAL, GREATER, OK }
+    GREATER_OR_EQUAL, GREATER, OUTSIDE, INSIDE, OK }
+  private static enum Comparators {
+    LOWER("<"), LOWER_OR_EQUAL("<="), EQUAL("=="), NOT_EQUAL("!="),
+    GREATER_OR_EQUAL(">="), GREATER(">"), OUTSIDE(null), INSIDE(null);
+
+    private final String symbol;
+
+    private Comparators(String symbol) {
+      this.symbol = symbol;
+    }
+
+    public String getSymbol() {
+      return symbol;
+    }
+
+    public CompareResults getResult() {
+      return CompareResults.valueOf(name());
+    }
 
-  private JMXServiceURL jmxUrl = null;
-  private JMXConnector connector = null;
-  private MBeanServerConnection connection = null;
+    public static boolean isSymbol(String symbol) {
+      for (Comparators comparator : values())
+        if (symbol.equals(comparator.symbol)) return true;
+      return symbol.equals("=");
+    }
+
+    public static Comparators fromSymbol(String symbol) {
+      if (symbol.equals("=")) return EQUAL;
+      for (Comparators comparator : values())
+        if (symbol.equals(comparator.symbol)) return comparator;
+      throw new IllegalArgumentException("Unknown comparator -> " + symbol);
+    }
+  }
+
+  private ConcurrentMap<String, JMXConnector> connectors =
+    new ConcurrentHashMap<String, JMXConnector>();
+  private Map<String, ConfigDetails> configs = null;
+  private ConcurrentMap<String, StateFile> stateFiles =
+    new ConcurrentHashMap<String, StateFile>();
+  private CounterState counters = new CounterState();
+  private Timings timings = new Timings();
+  private ConcurrentMap<String, ReentrantLock> snapshotLocks =
+    new ConcurrentHashMap<String, ReentrantLock>();
+  private HistoryStore history = null;
+  private List<HistoryStore.Rollup> rollups =
+    new ArrayList<HistoryStore.Rollup>();
+  private CountDownLatch stopSampling = new CountDownLatch(1);
+  private CountDownLatch sampled = new CountDownLatch(1);
   private Map<String, String> params = new HashMap<String, String>();
+  private Map<String, String> variables = new HashMap<String, String>();
   private List<Section> sections = new LinkedList<Section>();
   private boolean verbose = false;
   private boolean debug = false;
+  private boolean checkedOnly = false;
+  private boolean upSkipped = false;
   private String lineSeparator = System.getProperty("line.separator");
+  private PrintStream out = System.out;
 
-  class CheckDetails {
-
-    private Integer okCode = null;
-    private Integer warnCode = null;
-    private Integer errorCode = null;
-    private String warnThreshold = null;
-    private String errorThreshold = null;
-    private String warnComparator = ">";
-    private String errorComparator = ">";
-    private String okMessage = null;
-    private String warnMessage = null;
-    private String errorMessage = null;
+  /**
+   * A compiled threshold, i.e. the comparator and the pre-parsed value to
+   * compare with. Thresholds are either a value with a comparator, or a
+   * Nagios style range, e.g. <code>10:20</code> (alert when outside of the
+   * range) or <code>@10:20</code> (alert when inside of it).
+   */
+  class Threshold {
+    private final String text;
+    private final Comparators comparator;
+    private final boolean numeric;
+    private final double value;
+    private final double start;
+    private final double end;
 
-    public CheckDetails(String data) {
-      if (data != null) try {
-        String[] parts = data.split("\\|");
-        if (parts[0].length() > 0) {
-          String[] op = parts[0].split(":");
-          if (op[0].length() > 0) okCode = new Integer(op[0]);
-          if (op.length > 1 && op[1].length() > 0)
-            okMessage = op[1];
-        }
-        if (parts.length > 1 && parts[1].length() > 0) {
-          String[] wp = parts[1].split(":");
-          if (wp[0].length() > 0) warnCode = new Integer(wp[0]);
-          if (wp.length > 1 && wp[1].length() > 0)
-            warnMessage = wp[1];
-          if (wp.length > 2 && wp[2].length() > 0)
-            warnThreshold = wp[2];
-          if (wp.length > 3 && wp[3].length() > 0)
-            warnComparator = wp[3];
-        }
-        if (parts.length > 2 && parts[2].length() > 0) {
-          String[] ep = parts[2].split(":");
-          if (ep[0].length() > 0) errorCode = new Integer(ep[0]);
-          if (ep.length > 1 && ep[1].length() > 0)
-            errorMessage = ep[1];
-          if (ep.length > 2 && ep[2].length() > 0)
-            errorThreshold = ep[2];
-          if (ep.length > 3 && ep[3].length() > 0)
-            errorComparator = ep[3];
-        }
-      } catch (Exception e) {
-        System.err.println("WARNING: Could not parse check details -> " + data);
+    public Threshold(String text, String comparator) {
+      this.text = text;
+      if (text.startsWith("@") || text.startsWith("~") || text.indexOf(':') >= 0) {
+        // a range, where "~" stands for negative infinity
+        boolean inside = text.startsWith("@");
+        String range = inside ? text.substring(1) : text;
+        int colon = range.indexOf(':');
+        String s = colon >= 0 ? range.substring(0, colon) : "0";
+        String e = colon >= 0 ? range.substring(colon + 1) : range;
+        this.comparator = inside ? Comparators.INSIDE : Comparators.OUTSIDE;
+        this.start = s.equals("~") ? Double.NEGATIVE_INFINITY :
+          s.length() > 0 ? Double.parseDouble(s) : 0;
+        this.end = e.length() > 0 ? Double.parseDouble(e) :
+          Double.POSITIVE_INFINITY;
+        this.numeric = true;
+        this.value = 0;
+      } else {
+        this.comparator = Comparators.fromSymbol(comparator);
+        this.value = parseNumber(text);
+        this.numeric = !Double.isNaN(value) || text.equals("NaN");
+        this.start = 0;
+        this.end = 0;
       }
     }
 
-    public Integer getOkCode() {
-      return okCode;
+    public String getText() {
+      return text;
     }
 
-    public void setOkCode(Integer okCode) {
-      this.okCode = okCode;
+    public Comparators getComparator() {
+      return comparator;
     }
 
-    public Integer getWarnCode() {
-      return warnCode;
+    public boolean isRange() {
+      return comparator == Comparators.INSIDE ||
+        comparator == Comparators.OUTSIDE;
     }
 
-    public void setWarnCode(Integer warnCode) {
-      this.warnCode = warnCode;
+    /**
+     * Compares a value against this threshold. Numbers are compared
+     * numerically, everything else as strings.
+     *
+     * @param val  The value to check.
+     * @param sval  The value as a string.
+     * @return The comparison result, {@link CompareResults#OK} if the
+     *   threshold was not crossed.
+     */
+    public CompareResults compare(Object val, String sval) {
+      double v = Double.NaN;
+      if (numeric) {
+        if (val instanceof Number) v = ((Number) val).doubleValue();
+        else v = parseNumber(sval);
+      }
+      if (isRange()) {
+        if (Double.isNaN(v)) return CompareResults.OK;
+        boolean in = v >= start && v <= end;
+        return comparator == Comparators.INSIDE ?
+          (in ? CompareResults.INSIDE : CompareResults.OK) :
+          (in ? CompareResults.OK : CompareResults.OUTSIDE);
+      }
+      // try number comparison first, string as a fallback
+      int c = numeric && (!Double.isNaN(v) || sval.equals("NaN")) ?
+        Double.compare(v, value) : sval.compareTo(text);
+      boolean hit;
+      switch (comparator) {
+        case LOWER: hit = c < 0; break;
+        case LOWER_OR_EQUAL: hit = c <= 0; break;
+        case EQUAL: hit = c == 0; break;
+        case NOT_EQUAL: hit = c != 0; break;
+        case GREATER_OR_EQUAL: hit = c >= 0; break;
+        default: hit = c > 0; break;
+      }
+      return hit ? comparator.getResult() : CompareResults.OK;
     }
+  }
 
-    public Integer getErrorCode() {
-      return errorCode;
-    }
+  /**
+   * Holds a check, compiled into its thresholds and message formats when
+   * the configuration is read. Instances are immutable and can be shared.
+   */
+  class CheckDetails {
 
-    public void setErrorCode(Integer errorCode) {
-      this.errorCode = errorCode;
-    }
+    private final Integer okCode;
+    private final Integer warnCode;
+    private final Integer errorCode;
+    private final Threshold warnThreshold;
+    private final Threshold errorThreshold;
+    private final String okMessage;
+    private final String warnMessage;
+    private final String errorMessage;
+    private final MessageFormat okFormat;
+    private final MessageFormat warnFormat;
+    private final MessageFormat errorFormat;
 
-    public String getWarnThreshold() {
-      return warnThreshold;
+    public CheckDetails(String data) {
+      Integer[] codes = new Integer[3];
+      String[] messages = new String[3];
+      MessageFormat[] formats = new MessageFormat[3];
+      Threshold[] thresholds = new Threshold[3];
+      if (data != null) try {
+        String[] parts = data.split("\\|");
+        for (int n = 0; n < 3 && n < parts.length; n++) {
+          if (parts[n].length() == 0) continue;
+          String[] p = parts[n].split(":");
+          if (p[0].length() > 0) codes[n] = Integer.valueOf(p[0]);
+          if (p.length > 1 && p[1].length() > 0) {
+            messages[n] = p[1];
+            formats[n] = compileMessage(p[1]);
+          }
+          if (n > 0) thresholds[n] = parseThreshold(p);
+        }
+      } catch (Exception e) {
+        System.err.println("WARNING: Could not parse check details -> " + data);
+      }
+      okCode = codes[0];
+      warnCode = codes[1];
+      errorCode = codes[2];
+      okMessage = messages[0];
+      warnMessage = messages[1];
+      errorMessage = messages[2];
+      okFormat = formats[0];
+      warnFormat = formats[1];
+      errorFormat = formats[2];
+      warnThreshold = thresholds[1];
+      errorThreshold = thresholds[2];
     }
 
-    public void setWarnThreshold(String warnThreshold) {
+    public CheckDetails(Integer okCode, String okMessage, Integer warnCode,
+        String warnMessage, Threshold warnThreshold, Integer errorCode,
+        String errorMessage, Threshold errorThreshold)
+    throws UnsupportedEncodingException {
+      this.okCode = okCode;
+      this.warnCode = warnCode;
+      this.errorCode = errorCode;
       this.warnThreshold = warnThreshold;
+      this.errorThreshold = errorThreshold;
+      this.okMessage = okMessage;
+      this.warnMessage = warnMessage;
+      this.errorMessage = errorMessage;
+      this.okFormat = okMessage != null ? compileMessage(okMessage) : null;
+      this.warnFormat = warnMessage != null ? compileMessage(warnMessage) : null;
+      this.errorFormat = errorMessage != null ?
+        compileMessage(errorMessage) : null;
     }
 
-    public String getErrorThreshold() {
-      return errorThreshold;
+    /**
+     * Parses the threshold of a warning or error part, which is either a
+     * value and an optional comparator, or a range. An empty comparator is
+     * the default <code>&gt;</code>, as it always was, so ranges need both
+     * ends.
+     *
+     * @param parts  The parts of the definition, starting with the code.
+     * @return The threshold or <code>null</code> if none is given.
+     */
+    private Threshold parseThreshold(String[] parts) {
+      if (parts.length < 3 || parts[2].length() == 0) return null;
+      try {
+        if (parts.length > 3 && !Comparators.isSymbol(parts[3]))
+          return new Threshold(parts[2] + ":" + parts[3], null);
+        return new Threshold(parts[2], parts.length > 3 ? parts[3] : ">");
+      } catch (IllegalArgumentException e) {
+        // disable the threshold, but keep the rest of the check usable
+        System.err.println("WARNING: Could not parse check details -> " +
+          e.getMessage());
+        return null;
+      }
     }
 
-    public void setErrorThreshold(String errorThreshold) {
-      this.errorThreshold = errorThreshold;
+    /**
+     * Decodes and compiles a message.
+     *
+     * @param message  The URL-encoded message.
+     * @return The compiled message format.
+     * @throws UnsupportedEncodingException When decoding fails.
+     */
+    private MessageFormat compileMessage(String message)
+    throws UnsupportedEncodingException {
+      return new MessageFormat(URLDecoder.decode(message, "UTF8"));
+    }
+
+    public Integer getOkCode() {
+      return okCode;
     }
 
-    public String getWarnComparator() {
-      return warnComparator;
+    public Integer getWarnCode() {
+      return warnCode;
     }
 
-    public void setWarnComparator(String warnComparator) {
-      this.warnComparator = warnComparator;
+    public Integer getErrorCode() {
+      return errorCode;
     }
 
-    public String getErrorComparator() {
-      return errorComparator;
+    public Threshold getWarnThreshold() {
+      return warnThreshold;
     }
 
-    public void setErrorComparator(String errorComparator) {
-      this.errorComparator = errorComparator;
+    public Threshold getErrorThreshold() {
+      return errorThreshold;
     }
 
     public String getOkMessage() {
       return okMessage;
     }
 
-    public void setOkMessage(String okMessage) {
-      this.okMessage = okMessage;
-    }
-
     public String getWarnMessage() {
       return warnMessage;
     }
 
-    public void setWarnMessage(String warnMessage) {
-      this.warnMessage = warnMessage;
-    }
-
     public String getErrorMessage() {
       return errorMessage;
     }
 
-    public void setErrorMessage(String errorMessage) {
-      this.errorMessage = errorMessage;
-    }
-
     public boolean hasErrorCheck() {
       return errorThreshold != null & errorCode != null;
     }
@@ -215,48 +445,42 @@ public class JMXToolkit {
       return warnThreshold != null & warnCode != null;
     }
 
-    public CompareResults checkForError(String val) {
-      return compareValues(val, errorThreshold, errorComparator);
+    /**
+     * Evaluates the check for a value.
+     *
+     * @param val  The value to check.
+     * @param message  Receives the message of the check, if there is one.
+     * @return The exit code.
+     */
+    public int evaluate(Object val, StringBuilder message) {
+      String sval = val.toString();
+      if (hasErrorCheck() &&
+          errorThreshold.compare(val, sval) != CompareResults.OK) {
+        format(errorFormat, sval, message);
+        return errorCode;
+      }
+      if (hasWarnCheck() &&
+          warnThreshold.compare(val, sval) != CompareResults.OK) {
+        format(warnFormat, sval, message);
+        return warnCode;
+      }
+      format(okFormat, sval, message);
+      return okCode != null ? okCode : 0;
     }
 
-    public CompareResults checkForWarn(String val) {
-      return compareValues(val, warnThreshold, warnComparator);
+    private void format(MessageFormat format, String val, StringBuilder message) {
+      if (format == null) return;
+      Object[] data = { val };
+      // message formats are not thread-safe
+      synchronized (format) {
+        message.append(format.format(data));
+      }
     }
 
-    private CompareResults compareValues(String val, String thresh,
-            String comp) {
-      int c = 0;
-      // try number comparison first, string as a fallback
-      try {
-        Double v = new Double(val);
-        Double t = new Double(thresh);
-        c = v.compareTo(t);
-      } catch (Exception e) {
-        c = val.compareTo(thresh);
-      }
-      if ("<".equals(comp)) if (c < 0)
-        return CompareResults.LOWER; else return CompareResults.OK;
-      if ("<=".equals(comp)) if (c <= 0)
-        return CompareResults.LOWER_OR_EQUAL; else return CompareResults.OK;
-      if ("==".equals(comp)) if (c == 0)
-        return CompareResults.EQUAL; else return CompareResults.OK;
-      if ("=".equals(comp)) if (c == 0)
-        return CompareResults.EQUAL; else return CompareResults.OK;
-      if ("!=".equals(comp)) if (c != 0)
-        return CompareResults.NOT_EQUAL; else return CompareResults.OK;
-      if (">=".equals(comp)) if (c >= 0)
-        return CompareResults.GREATER_OR_EQUAL; else return CompareResults.OK;
-      if (">".equals(comp)) if (c > 0)
-        return CompareResults.GREATER; else return CompareResults.OK;
-      throw new IllegalArgumentException("Unknown comparator -> " + comp);
-    }
-
-    private String format(String value) {
-      try {
-        return THRESH.format(value);
-      } catch (Exception e) {
-        return value;
-      }
+    private String format(Threshold threshold) {
+      if (threshold == null) return ":";
+      if (threshold.isRange()) return threshold.getText();
+      return threshold.getText() + ":" + threshold.getComparator().getSymbol();
     }
 
     @Override
@@ -268,38 +492,55 @@ public class JMXToolkit {
           (okMessage != null ? ":" + okMessage : "") +
           "|" + (warnCode != null ? warnCode : "") + ":" +
           (warnMessage != null ? warnMessage : "") + ":" +
-          (warnThreshold != null ? format(warnThreshold) : "") + ":" +
-          (warnComparator != null ? warnComparator : "") +
+          format(warnThreshold) +
           "|" + (errorCode != null ? errorCode : "") + ":" +
           (errorMessage != null ? errorMessage : "") + ":" +
-          (errorThreshold != null ? format(errorThreshold) : "") + ":" +
-          (errorComparator != null ? errorComparator : "");
+          format(errorThreshold);
       return res;
     }
   }
 
   /**
-   * Base class for attributes and operations.
+   * Base class for attributes and operations. Instances are immutable, so
+   * that sections inheriting from another can share them. The values are
+   * kept by the sections.
    */
   class MemberDetails {
-    protected String name = null;
-    protected ReturnTypes returnType = ReturnTypes.NONE;
-    protected CheckDetails checkDetails = null;
-    protected Object value = null;
+    protected final String name;
+    protected final ReturnTypes returnType;
+    protected final CheckDetails checkDetails;
+    protected final boolean counter;
 
     public MemberDetails(String name, ReturnTypes returnType) {
+      this(name, returnType, false, null);
+    }
+
+    public MemberDetails(String name, ReturnTypes returnType, boolean counter,
+        CheckDetails checkDetails) {
       this.name = name;
       this.returnType = returnType;
+      this.counter = counter;
+      this.checkDetails = checkDetails;
     }
 
     public MemberDetails(String name, String data) {
       this.name = name;
+      ReturnTypes returnType = ReturnTypes.NONE;
+      CheckDetails checkDetails = null;
+      boolean counter = false;
       if (data != null) {
         String[] parts = data.split("\\|", 2);
-        if (parts[0].length() > 0)
-          this.returnType = ReturnTypes.valueOf(parts[0].toUpperCase());
+        // the type may be followed by a ",COUNTER" suffix
+        for (String type : parts[0].split(",")) {
+          if (type.equalsIgnoreCase(COUNTER)) counter = true;
+          else if (type.length() > 0)
+            returnType = ReturnTypes.valueOf(type.toUpperCase());
+        }
         if (parts.length > 1) checkDetails = new CheckDetails(parts[1]);
       }
+      this.returnType = returnType;
+      this.checkDetails = checkDetails;
+      this.counter = counter;
     }
 
     public String getName() {
@@ -314,24 +555,8 @@ public class JMXToolkit {
       return checkDetails;
     }
 
-    public void setCheckDetails(CheckDetails checkDetails) {
-      this.checkDetails = checkDetails;
-    }
-
-    public Object getValue() {
-      return value;
-    }
-
-    public void setValue(Object value) {
-      this.value = value;
-    }
-
-    public boolean printValue(PrintWriter writer) {
-      if (value != null) {
-        writer.print(name + ":" + value);
-        return true;
-      }
-      return false;
+    public boolean isCounter() {
+      return counter;
     }
 
     @Override
@@ -349,6 +574,8 @@ public class JMXToolkit {
     public String toString() {
       String res = returnType != null && returnType != ReturnTypes.NONE ?
         name + "=" + returnType : name;
+      if (counter)
+        res += (res.equals(name) ? "=" : ",") + COUNTER;
       if (checkDetails != null) res += checkDetails;
       return res;
     }
@@ -365,6 +592,11 @@ public class JMXToolkit {
     public AttributeDetails(String name, String data) {
       super(name, data);
     }
+
+    public AttributeDetails(String name, ReturnTypes returnType,
+        boolean counter, CheckDetails checkDetails) {
+      super(name, returnType, counter, checkDetails);
+    }
   }
 
   /**
@@ -379,6 +611,11 @@ public class JMXToolkit {
       super(name, data);
     }
 
+    public OperationDetails(String name, ReturnTypes returnType,
+        boolean counter, CheckDetails checkDetails) {
+      super(name, returnType, counter, checkDetails);
+    }
+
     @Override
     public String toString() {
       return "*" + super.toString();
@@ -389,7 +626,7 @@ public class JMXToolkit {
    * Container class for convenience. Holds everything for one "section", which
    * is an object with the attributes, operations and access details.
    */
-  class Section {
+  class Section implements Cloneable {
     private String name = null;
     private String object = null;
     private String regexp = null;
@@ -397,10 +634,30 @@ public class JMXToolkit {
     private String user = null;
     private String password = null;
     private String extendsName = null;
+    private String interval = null;
+    private String hosts = null;
+    private String host = null;
+    private String template = null;
     private Pattern pattern = null;
     private Set<MemberDetails> members = new LinkedHashSet<MemberDetails>();
+    private Set<MemberDetails> resolved = null;
+    private Section parent = null;
+    private Map<MemberDetails, Object> values =
+      new ConcurrentHashMap<MemberDetails, Object>();
+    private Map<String, String> instructions = new LinkedHashMap<String, String>();
     private ObjectName objectName = null;
-    private boolean connected = false;
+    private ObjectName queryName = null;
+    private boolean cachedName = false;
+    private String membersKey = null;
+    private int[] counterSlots = null;
+    private boolean failed = false;
+    private volatile boolean abandoned = false;
+    private MBeanServerConnection connection = null;
+    private String hostName = null;
+    private ConcurrentMap<String, Histogram> timings =
+      new ConcurrentHashMap<String, Histogram>();
+    private ConcurrentMap<String, Histogram> memberTimings =
+      new ConcurrentHashMap<String, Histogram>();
 
     public Section(String name) {
       String n = name != null ? name.trim().replaceAll("^\\[|\\]$", "") : null;
@@ -409,6 +666,35 @@ public class JMXToolkit {
 
     public void add(MemberDetails details) {
       members.add(details);
+      resolved = null;
+    }
+
+    /**
+     * Inherits from the given section. Options that are not set in this
+     * section are taken from the parent. The members of the parent are
+     * shared, unless this section declares a member with the same name.
+     *
+     * @param parent  The resolved parent section.
+     */
+    public void inherit(Section parent) {
+      this.parent = parent;
+      if (object == null && regexp == null) {
+        object = parent.getObject();
+        setRegexp(parent.getRegexp());
+      }
+      if (URL == null) URL = parent.getURL();
+      if (user == null) user = parent.getUser();
+      if (password == null) password = parent.getPassword();
+      if (interval == null) interval = parent.getInterval();
+      resolved = null;
+    }
+
+    public Section getParent() {
+      return parent;
+    }
+
+    public Map<String, String> getInstructions() {
+      return instructions;
     }
 
     public String getName() {
@@ -458,6 +744,7 @@ public class JMXToolkit {
     public void setRegexp(String regexp) {
       this.regexp = regexp;
       if (regexp != null) pattern = Pattern.compile(regexp);
+      queryName = null;
     }
 
     public String getExtendsName() {
@@ -468,12 +755,77 @@ public class JMXToolkit {
       this.extendsName = extendsName;
     }
 
+    public String getInterval() {
+      return interval;
+    }
+
+    public void setInterval(String interval) {
+      this.interval = interval;
+    }
+
+    public String getHosts() {
+      return hosts;
+    }
+
+    public void setHosts(String hosts) {
+      this.hosts = hosts;
+    }
+
+    public String getHost() {
+      return host;
+    }
+
+    public void setHost(String host) {
+      this.host = host;
+    }
+
+    public String getTemplate() {
+      return template;
+    }
+
+    public void setTemplate(String template) {
+      this.template = template;
+    }
+
+    /**
+     * Returns the members of this section, including the inherited ones.
+     *
+     * @return The members.
+     */
     public Set<MemberDetails> getMembers() {
+      if (parent == null) return members;
+      if (resolved == null) {
+        Set<MemberDetails> inherited = parent.getMembers();
+        if (members.size() == 0) {
+          resolved = inherited;
+        } else {
+          // keep the order of the parent, but use the overriding members
+          Map<MemberDetails, MemberDetails> own =
+            new HashMap<MemberDetails, MemberDetails>();
+          for (MemberDetails details : members) own.put(details, details);
+          Set<MemberDetails> res = new LinkedHashSet<MemberDetails>();
+          for (MemberDetails details : inherited) {
+            MemberDetails override = own.get(details);
+            res.add(override != null ? override : details);
+          }
+          res.addAll(members);
+          resolved = Collections.unmodifiableSet(res);
+        }
+      }
+      return resolved;
+    }
+
+    public Set<MemberDetails> getDeclaredMembers() {
       return members;
     }
 
-    public void setMembers(Set<MemberDetails> members) {
-      this.members = members;
+    public Object getValue(MemberDetails details) {
+      return values.get(details);
+    }
+
+    public void setValue(MemberDetails details, Object value) {
+      if (value != null) values.put(details, value);
+      else values.remove(details);
     }
 
     public ObjectName getObjectName()
@@ -487,12 +839,82 @@ public class JMXToolkit {
       this.objectName = objectName;
     }
 
+    public boolean isCachedName() {
+      return cachedName;
+    }
+
+    public void setCachedName(boolean cachedName) {
+      this.cachedName = cachedName;
+    }
+
+    /**
+     * Returns the key of the cached members used by this section.
+     *
+     * @return The key, or <code>null</code> if the members are not cached.
+     */
+    public String getMembersKey() {
+      return membersKey;
+    }
+
+    public void setMembersKey(String membersKey) {
+      this.membersKey = membersKey;
+    }
+
+    /**
+     * Returns the name or pattern to query the server with. For regular
+     * expressions this is a pattern narrowing down the names to match the
+     * expression against, or <code>null</code> when none can be derived.
+     *
+     * @return The name or pattern, may be <code>null</code>.
+     */
+    public ObjectName getQueryName() {
+      if (queryName == null) try {
+        if (pattern != null) {
+          String qn = toObjectNamePattern(regexp);
+          if (qn != null) queryName = new ObjectName(qn);
+        } else if (object != null) {
+          queryName = new ObjectName(object);
+        }
+      } catch (MalformedObjectNameException e) {
+        if (verbose) System.out.println("Invalid query name -> " + e);
+      }
+      return queryName;
+    }
+
+    public MBeanServerConnection getConnection() {
+      return connection;
+    }
+
+    public void setConnection(MBeanServerConnection connection) {
+      this.connection = connection;
+    }
+
     public boolean isConnected() {
-      return connected;
+      return connection != null;
+    }
+
+    public String getHostName() {
+      return hostName;
+    }
+
+    public void setHostName(String hostName) {
+      this.hostName = hostName;
+    }
+
+    /**
+     * Returns the histogram kept for a phase or a member of this section.
+     *
+     * @param phase  The phase.
+     * @param member  The member name, or <code>null</code> for the phase.
+     * @return The histogram, or <code>null</code> if there is none yet.
+     */
+    public Histogram getTiming(String phase, String member) {
+      return member != null ? memberTimings.get(member) : timings.get(phase);
     }
 
-    public void setConnected(boolean connected) {
-      this.connected = connected;
+    public void setTiming(String phase, String member, Histogram histogram) {
+      if (member != null) memberTimings.put(member, histogram);
+      else timings.put(phase, histogram);
     }
 
     public boolean matches(String text) {
@@ -502,14 +924,84 @@ public class JMXToolkit {
         return pattern.matcher(text).matches();
     }
 
-    public void printValues(PrintWriter writer) {
-      for (MemberDetails detail : members)
-        if (detail.printValue(writer)) writer.print(" ");
+    public int[] getCounterSlots() {
+      return counterSlots;
+    }
+
+    public void setCounterSlots(int[] counterSlots) {
+      this.counterSlots = counterSlots;
+    }
+
+    public boolean isFailed() {
+      return failed;
+    }
+
+    public void setFailed(boolean failed) {
+      this.failed = failed;
+    }
+
+    public boolean isAbandoned() {
+      return abandoned;
+    }
+
+    public void setAbandoned(boolean abandoned) {
+      this.abandoned = abandoned;
+    }
+
+    public void clearValues() {
+      values.clear();
+      failed = false;
+    }
+
+    public boolean hasValues() {
+      return !values.isEmpty();
+    }
+
+    /**
+     * Returns a copy of this section that can be queried on its own. The
+     * copy starts without values, so a query that is abandoned cannot
+     * change this section.
+     *
+     * @return The copy.
+     */
+    public Section copy() {
+      try {
+        Section res = (Section) clone();
+        res.members = new LinkedHashSet<MemberDetails>(members);
+        res.resolved = null;
+        res.values = new ConcurrentHashMap<MemberDetails, Object>();
+        res.counterSlots = counterSlots != null ? counterSlots.clone() : null;
+        res.failed = false;
+        return res;
+      } catch (CloneNotSupportedException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /**
+     * Takes over the values and the state of a finished query of a copy.
+     *
+     * @param copy  The copy created with {@link #copy()}.
+     */
+    public void takeResults(Section copy) {
+      if (!members.equals(copy.members)) {
+        members = copy.members;
+        resolved = null;
+      }
+      values.putAll(copy.values);
+      failed = failed || copy.failed;
+      objectName = copy.objectName;
+      queryName = copy.queryName;
+      cachedName = copy.cachedName;
+      membersKey = copy.membersKey;
+      counterSlots = copy.counterSlots;
+      connection = copy.connection;
+      hostName = copy.hostName;
     }
 
     public MemberDetails getMember(String attr) {
       String name = attr.startsWith("*") ? attr.substring(1) : attr;
-      for (MemberDetails details : members)
+      for (MemberDetails details : getMembers())
         if (details.getName().equals(name)) return details;
       return null;
     }
@@ -517,458 +1009,4578 @@ public class JMXToolkit {
     @Override
     public String toString() {
       String res = "[" + name + "]" + lineSeparator;
-      if (object != null) res += "@object=" + object + lineSeparator;
-      if (regexp != null) res += "@regexp=" + regexp + lineSeparator;
-      if (URL != null) res += "@url=" + URL + lineSeparator;
+      // only write what is not inherited
+      Section p = parent;
+      if (isOwn(object, p != null ? p.getObject() : null))
+        res += "@object=" + object + lineSeparator;
+      if (isOwn(regexp, p != null ? p.getRegexp() : null))
+        res += "@regexp=" + regexp + lineSeparator;
+      if (isOwn(URL, p != null ? p.getURL() : null))
+        res += "@url=" + URL + lineSeparator;
       if (extendsName != null) res += "@extends=" + extendsName + lineSeparator;
-      if (user != null) res += "@user=" + user + lineSeparator;
-      if (password != null) res += "@password=" + password + lineSeparator;
+      if (isOwn(interval, p != null ? p.getInterval() : null))
+        res += "@interval=" + interval + lineSeparator;
+      if (hosts != null) res += "@hosts=" + hosts + lineSeparator;
+      if (isOwn(user, p != null ? p.getUser() : null))
+        res += "@user=" + user + lineSeparator;
+      if (isOwn(password, p != null ? p.getPassword() : null))
+        res += "@password=" + password + lineSeparator;
       for (MemberDetails detail : members)
         res += detail + lineSeparator;
       return res;
     }
+
+    private boolean isOwn(String value, String inherited) {
+      return value != null && !value.equals(inherited);
+    }
   }
 
   /**
-   * Constructs a new instance of this class and executes the action.
-   *
-   * @param args  The command line arguments.
-   * @throws InstanceNotFoundException When instantiating the JMX bean fails.
-   * @throws IntrospectionException When instantiating the JMX bean fails.
-   * @throws ReflectionException When instantiating the JMX bean fails.
-   * @throws IOException When talking to the remote JMX server failed.
+   * Container class for convenience. Holds the resolved URL and credentials
+   * used to connect to a JMX server.
    */
-  public JMXToolkit(String[] args)
-  throws InstanceNotFoundException, IntrospectionException, ReflectionException,
-  IOException {
-    int exitCode = 0;
-    parseArgs(args);
-    String action = params.get("-a");
-    if (action == null) action = params.get("-w") != null ? "check" : "query";
-    if (verbose) System.out.println("Action -> " + action);
-    if (action.equals("walk")) walk();
-    else {
-      if (verbose) System.out.println("Reading properties...");
-      readProperties();
-      if (action.equals("create")) {
-        createConfig();
-        writeProperties();
-      } else if (action.equals("check")) {
-        exitCode = checkValue();
-      } else if (action.equals("query")) {
-        queryValues();
-        outputResults();
-      } else if (action.equals("encode")) {
-        System.out.println(URLEncoder.encode(params.get("-m"), "UTF8"));
-      } else {
-        System.err.println("Unknown action -> " + action);
-        exitCode = -99;
-      }
+  class ConnectionDetails {
+    private String URL = null;
+    private String user = null;
+    private String password = null;
+
+    public ConnectionDetails(String uRL, String user, String password) {
+      this.URL = uRL;
+      this.user = user;
+      this.password = password;
+    }
+
+    public String getURL() {
+      return URL;
+    }
+
+    public String getUser() {
+      return user;
+    }
+
+    public String getPassword() {
+      return password;
+    }
+
+    public String getKey() {
+      return URL + "|" + user + "|" + password;
+    }
+
+    @Override
+    public String toString() {
+      return URL;
     }
-    if (verbose) System.out.println("Exit code -> " + exitCode);
-    if (verbose) System.out.println("Done.");
-    System.exit(exitCode);
   }
 
   /**
-   * Checks if a value is within certain boundaries.
-   * @return The error code.
-   * @throws IOException When getting the value fails.
+   * Container class for convenience. Holds a parsed configuration file that
+   * is kept between requests in server mode.
    */
-  private int checkValue() throws IOException {
-    if (verbose) System.out.println("Checking value...");
+  class ConfigDetails {
+    private long lastModified = 0;
+    private List<Section> sections = null;
+
+    public ConfigDetails(long lastModified, List<Section> sections) {
+      this.lastModified = lastModified;
+      this.sections = sections;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public List<Section> getSections() {
+      return sections;
+    }
+  }
+
+  /**
+   * Keeps the previous sample of every counter, to compute rates from. The
+   * state is held in primitive arrays, each counter owns one slot in them.
+   */
+  class CounterState {
+    private long[] longs = new long[64];
+    private double[] doubles = new double[64];
+    private long[] times = new long[64];
+    private boolean[] seen = new boolean[64];
+    private int size = 0;
+
+    /**
+     * Reserves a new slot.
+     *
+     * @return The slot index.
+     */
+    public synchronized int register() {
+      if (size == times.length) {
+        int length = size * 2;
+        longs = Arrays.copyOf(longs, length);
+        doubles = Arrays.copyOf(doubles, length);
+        times = Arrays.copyOf(times, length);
+        seen = Arrays.copyOf(seen, length);
+      }
+      return size++;
+    }
+
+    /**
+     * Stores a new sample and computes the rate against the previous one.
+     * Counters that went backwards are either treated as wrapped around, when
+     * the difference fits the width of the value, or as reset to zero.
+     *
+     * @param slot  The slot of the counter.
+     * @param value  The current value.
+     * @param time  The time of the sample in milliseconds.
+     * @return The rate per second or <code>null</code> if there is none yet.
+     */
+    public synchronized Double update(int slot, Number value, long time) {
+      boolean integral = !(value instanceof Double || value instanceof Float);
+      long l = value.longValue();
+      double d = value.doubleValue();
+      Double res = null;
+      if (seen[slot] && time > times[slot]) {
+        double delta;
+        if (integral) {
+          // wrap around within the width of the type, otherwise it was reset
+          long diff = value instanceof Integer ? (int) (l - longs[slot]) :
+            l - longs[slot];
+          delta = diff >= 0 ? diff : l;
+        } else {
+          delta = d >= doubles[slot] ? d - doubles[slot] : d;
+        }
+        if (delta >= 0) res = delta * 1000.0 / (time - times[slot]);
+      }
+      longs[slot] = l;
+      doubles[slot] = d;
+      times[slot] = time;
+      seen[slot] = true;
+      return res;
+    }
+
+    /**
+     * Restores a sample, for example from a previous run.
+     */
+    public synchronized void restore(int slot, long l, double d, long time) {
+      longs[slot] = l;
+      doubles[slot] = d;
+      times[slot] = time;
+      seen[slot] = true;
+    }
+
+    public synchronized String toString(int slot) {
+      return seen[slot] ? longs[slot] + "\t" + doubles[slot] + "\t" +
+        times[slot] : null;
+    }
+  }
+
+  /**
+   * Records durations in microseconds. The buckets grow exponentially, with
+   * eight linear steps per power of two, so that a fixed number of counters
+   * covers microseconds to hours with an error below 13%. Recording does not
+   * lock.
+   */
+  class Histogram {
+    private static final int MAX_EXPONENT = 36;
+    private final int maxExponent;
+    private final AtomicLongArray buckets;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram() {
+      this(MAX_EXPONENT);
+    }
+
+    /**
+     * Creates a histogram for durations up to the given power of two, longer
+     * ones are counted in the last bucket.
+     *
+     * @param maxExponent  The exponent of the largest duration.
+     */
+    public Histogram(int maxExponent) {
+      this.maxExponent = maxExponent;
+      this.buckets = new AtomicLongArray((maxExponent - 1) * 8);
+    }
+
+    public void record(long micros) {
+      if (micros < 0) micros = 0;
+      buckets.incrementAndGet(getBucket(micros));
+      count.incrementAndGet();
+      sum.addAndGet(micros);
+      long m = max.get();
+      while (micros > m && !max.compareAndSet(m, micros)) m = max.get();
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getSum() {
+      return sum.get();
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile.
+     *
+     * @param percentile  The percentile, between 0 and 1.
+     * @return The duration in microseconds.
+     */
+    public long getPercentile(double percentile) {
+      long total = count.get();
+      if (total == 0) return 0;
+      long rank = Math.max(1, (long) Math.ceil(percentile * total));
+      long seen = 0;
+      for (int n = 0; n < buckets.length(); n++) {
+        seen += buckets.get(n);
+        if (seen >= rank) return Math.min(getLowerBound(n + 1) - 1, max.get());
+      }
+      return max.get();
+    }
+
+    private int getBucket(long micros) {
+      if (micros < 8) return (int) micros;
+      int exp = 63 - Long.numberOfLeadingZeros(micros);
+      if (exp > maxExponent) return buckets.length() - 1;
+      return (exp - 2) * 8 + (int) ((micros >>> (exp - 3)) & 7);
+    }
+
+    private long getLowerBound(int bucket) {
+      if (bucket < 8) return bucket;
+      return (8L + bucket % 8) << (bucket / 8 - 1);
+    }
+  }
+
+  /**
+   * Keeps a histogram of the durations of every phase of talking to the
+   * servers, i.e. connecting, scanning object names, reading MBean infos,
+   * reading attributes and invoking operations, per host, section and
+   * member. The histograms of members cover durations up to about 17
+   * seconds, which keeps them small.
+   */
+  class Timings {
+    private static final int MEMBER_EXPONENT = 24;
+    private final ConcurrentMap<String, Histogram> histograms =
+      new ConcurrentHashMap<String, Histogram>();
+
+    public void record(String phase, String host, String section,
+        String member, long nanos) {
+      get(phase, host, section, member).record(nanos / 1000);
+    }
+
+    /**
+     * Returns the histogram of a phase, host, section and member, creating
+     * it if needed. Frequent callers keep the histogram instead of looking
+     * it up every time.
+     *
+     * @return The histogram.
+     */
+    public Histogram get(String phase, String host, String section,
+        String member) {
+      String key = phase + '\t' + host + '\t' + section + '\t' +
+        (member != null ? member : "");
+      Histogram histogram = histograms.get(key);
+      if (histogram == null) {
+        histogram = member != null ? new Histogram(MEMBER_EXPONENT) :
+          new Histogram();
+        Histogram other = histograms.putIfAbsent(key, histogram);
+        if (other != null) histogram = other;
+      }
+      return histogram;
+    }
+
+    /**
+     * Returns the histograms, with the most time spent first.
+     *
+     * @return The histograms by their tab separated phase, host, section and
+     *   member.
+     */
+    public List<Map.Entry<String, Histogram>> getSorted() {
+      List<Map.Entry<String, Histogram>> res =
+        new ArrayList<Map.Entry<String, Histogram>>(histograms.entrySet());
+      Collections.sort(res, new Comparator<Map.Entry<String, Histogram>>() {
+        @Override
+        public int compare(Map.Entry<String, Histogram> o1,
+            Map.Entry<String, Histogram> o2) {
+          long s1 = o1.getValue().getSum();
+          long s2 = o2.getValue().getSum();
+          return s1 < s2 ? 1 : s1 > s2 ? -1 : o1.getKey().compareTo(o2.getKey());
+        }
+      });
+      return res;
+    }
+  }
+
+  /**
+   * Writes the values of sections in one of the output formats. The output
+   * is streamed to a buffered writer, and integral numbers are written
+   * without creating intermediate strings.
+   */
+  abstract class OutputWriter {
+    protected final Writer writer;
+    protected final char[] buffer = new char[20];
+
+    OutputWriter(Writer writer) {
+      this.writer = writer;
+    }
+
+    /**
+     * Writes the values of a section.
+     *
+     * @param section  The section to write.
+     * @param time  The time the values were taken, in milliseconds.
+     * @throws IOException When writing fails.
+     */
+    public abstract void write(Section section, long time) throws IOException;
+
+    /**
+     * Writes a single value, e.g. one read from the history.
+     *
+     * @param time  The time of the value, in milliseconds.
+     * @param host  The host.
+     * @param section  The section name.
+     * @param object  The object name, may be empty.
+     * @param member  The member name.
+     * @param value  The value.
+     * @throws IOException When writing fails.
+     */
+    public abstract void writePoint(long time, String host, String section,
+      String object, String member, double value) throws IOException;
+
+    /**
+     * Writes the values of an event, e.g. a JMX notification.
+     *
+     * @param time  The time of the event, in milliseconds.
+     * @param host  The host.
+     * @param section  The section name.
+     * @param on  The object name, may be <code>null</code>.
+     * @param values  The values of the event by name.
+     * @throws IOException When writing fails.
+     */
+    public abstract void writeEvent(long time, String host, String section,
+      ObjectName on, Map<String, Object> values) throws IOException;
+
+    /**
+     * Ends a batch of sections, i.e. one query or one round of samples.
+     *
+     * @throws IOException When writing fails.
+     */
+    public void finish() throws IOException {
+      writer.flush();
+    }
+
+    protected void writeValue(Object value) throws IOException {
+      if (value instanceof Long || value instanceof Integer ||
+          value instanceof Short || value instanceof Byte)
+        writeLong(writer, ((Number) value).longValue(), buffer);
+      else writer.write(String.valueOf(value));
+    }
+
+    protected void writeDouble(double value) throws IOException {
+      if (value == Math.rint(value) && Math.abs(value) < 1e15)
+        writeLong(writer, (long) value, buffer);
+      else writer.write(Double.toString(value));
+    }
+
+    private String lastObject = null;
+    private ObjectName lastName = null;
+
+    /**
+     * Parses an object name, remembering the last one, since points of the
+     * same object usually come in a row.
+     *
+     * @param object  The object name.
+     * @return The object name or <code>null</code> if it is not valid.
+     */
+    protected ObjectName toObjectName(String object) {
+      if (!object.equals(lastObject)) {
+        lastObject = object;
+        try {
+          lastName = object.length() > 0 ? new ObjectName(object) : null;
+        } catch (MalformedObjectNameException e) {
+          lastName = null;
+        }
+      }
+      return lastName;
+    }
+  }
+
+  /**
+   * Writes the values as <code>name:value</code> pairs separated by spaces,
+   * as expected by Cacti. A query writes all sections on one line, samples
+   * get one line per section with the time and section name in front.
+   */
+  class CactiWriter extends OutputWriter {
+    private final boolean sampling;
+
+    CactiWriter(Writer writer, boolean sampling) {
+      super(writer);
+      this.sampling = sampling;
+    }
+
+    @Override
+    public void write(Section section, long time) throws IOException {
+      if (sampling) {
+        writeLong(writer, time, buffer);
+        writer.write(' ');
+        writer.write(section.getName());
+        writer.write(' ');
+      }
+      for (MemberDetails details : section.getMembers()) {
+        Object value = section.getValue(details);
+        if (value == null) continue;
+        writer.write(details.getName());
+        writer.write(':');
+        writeValue(value);
+        writer.write(' ');
+      }
+      if (sampling) writer.write(lineSeparator);
+    }
+
+    @Override
+    public void writePoint(long time, String host, String section,
+        String object, String member, double value) throws IOException {
+      writeLong(writer, time, buffer);
+      writer.write(' ');
+      writer.write(section);
+      writer.write(' ');
+      writer.write(member);
+      writer.write(':');
+      writeDouble(value);
+      writer.write(lineSeparator);
+    }
+
+    @Override
+    public void writeEvent(long time, String host, String section,
+        ObjectName on, Map<String, Object> values) throws IOException {
+      writeLong(writer, time, buffer);
+      writer.write(' ');
+      writer.write(section);
+      for (Map.Entry<String, Object> entry : values.entrySet()) {
+        writer.write(' ');
+        writer.write(WHITESPACE.matcher(entry.getKey()).replaceAll("_"));
+        writer.write(':');
+        Object value = entry.getValue();
+        // keep text like "end of minor GC" in one field
+        if (value instanceof String)
+          writer.write(WHITESPACE.matcher((String) value).replaceAll("_"));
+        else
+          writeValue(value);
+      }
+      writer.write(lineSeparator);
+    }
+
+    @Override
+    public void finish() throws IOException {
+      if (!sampling) writer.write(lineSeparator);
+      super.finish();
+    }
+  }
+
+  /**
+   * Writes one JSON object per section and line, holding the time, section,
+   * host, object name and its key properties, and the values.
+   */
+  class JsonWriter extends OutputWriter {
+    private final StringBuilder sb = new StringBuilder();
+
+    JsonWriter(Writer writer) {
+      super(writer);
+    }
+
+    @Override
+    public void write(Section section, long time) throws IOException {
+      appendHeader(time, getHostName(section), section.getName(),
+        getResolvedName(section));
+      sb.append(",\"values\":{");
+      boolean first = true;
+      for (MemberDetails details : section.getMembers()) {
+        Object value = section.getValue(details);
+        if (value == null) continue;
+        if (!first) sb.append(',');
+        first = false;
+        appendJson(sb, details.getName());
+        sb.append(':');
+        appendJson(sb, value);
+      }
+      sb.append("}}");
+      writer.append(sb);
+      writer.write(lineSeparator);
+    }
+
+    @Override
+    public void writePoint(long time, String host, String section,
+        String object, String member, double value) throws IOException {
+      appendHeader(time, host, section, toObjectName(object));
+      sb.append(",\"member\":");
+      appendJson(sb, member);
+      sb.append(",\"value\":");
+      if (Double.isNaN(value) || Double.isInfinite(value))
+        appendJson(sb, Double.toString(value));
+      else if (value == Math.rint(value) && Math.abs(value) < 1e15)
+        sb.append((long) value);
+      else sb.append(value);
+      sb.append('}');
+      writer.append(sb);
+      writer.write(lineSeparator);
+    }
+
+    @Override
+    public void writeEvent(long time, String host, String section,
+        ObjectName on, Map<String, Object> values) throws IOException {
+      appendHeader(time, host, section, on);
+      sb.append(",\"values\":");
+      appendJson(sb, values);
+      sb.append('}');
+      writer.append(sb);
+      writer.write(lineSeparator);
+    }
+
+    /**
+     * Starts a new line in the buffer with the fields common to all objects.
+     */
+    private void appendHeader(long time, String host, String section,
+        ObjectName on) {
+      sb.setLength(0);
+      sb.append("{\"time\":").append(time);
+      sb.append(",\"section\":");
+      appendJson(sb, section);
+      sb.append(",\"host\":");
+      appendJson(sb, host);
+      if (on != null) {
+        sb.append(",\"object\":");
+        appendJson(sb, on.getCanonicalName());
+        sb.append(",\"keys\":");
+        appendJson(sb, getKeyProperties(on));
+      }
+    }
+  }
+
+  /**
+   * Writes one CSV row per value, with the header
+   * <code>time,host,section,domain,keys,member,value</code> as the first
+   * line. The key properties are given in their canonical form.
+   */
+  class CsvWriter extends OutputWriter {
+    private boolean header = false;
+
+    CsvWriter(Writer writer) {
+      super(writer);
+    }
+
+    @Override
+    public void write(Section section, long time) throws IOException {
+      String host = getHostName(section);
+      ObjectName on = getResolvedName(section);
+      for (MemberDetails details : section.getMembers()) {
+        Object value = section.getValue(details);
+        if (value == null) continue;
+        writeFields(time, host, section.getName(), on, details.getName());
+        if (value instanceof Number) writeValue(value);
+        else writeField(String.valueOf(value));
+        writer.write(lineSeparator);
+      }
+    }
+
+    @Override
+    public void writePoint(long time, String host, String section,
+        String object, String member, double value) throws IOException {
+      writeFields(time, host, section, toObjectName(object), member);
+      writeDouble(value);
+      writer.write(lineSeparator);
+    }
+
+    @Override
+    public void writeEvent(long time, String host, String section,
+        ObjectName on, Map<String, Object> values) throws IOException {
+      for (Map.Entry<String, Object> entry : values.entrySet()) {
+        writeFields(time, host, section, on, entry.getKey());
+        if (entry.getValue() instanceof Number) writeValue(entry.getValue());
+        else writeField(String.valueOf(entry.getValue()));
+        writer.write(lineSeparator);
+      }
+    }
+
+    /**
+     * Writes all fields but the value, and the header before the first row.
+     */
+    private void writeFields(long time, String host, String section,
+        ObjectName on, String member) throws IOException {
+      if (!header) {
+        writer.write("time,host,section,domain,keys,member,value");
+        writer.write(lineSeparator);
+        header = true;
+      }
+      writeLong(writer, time, buffer);
+      writer.write(',');
+      writeField(host);
+      writer.write(',');
+      writeField(section);
+      writer.write(',');
+      if (on != null) writeField(on.getDomain());
+      writer.write(',');
+      if (on != null) writeField(on.getCanonicalKeyPropertyListString());
+      writer.write(',');
+      writeField(member);
+      writer.write(',');
+    }
+
+    private void writeField(String field) throws IOException {
+      boolean quote = false;
+      for (int n = 0; n < field.length() && !quote; n++) {
+        char c = field.charAt(n);
+        quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }
+      if (!quote) {
+        writer.write(field);
+        return;
+      }
+      writer.write('"');
+      for (int n = 0; n < field.length(); n++) {
+        char c = field.charAt(n);
+        if (c == '"') writer.write('"');
+        writer.write(c);
+      }
+      writer.write('"');
+    }
+  }
+
+  /**
+   * Writes the numeric values in the Graphite plaintext format, one line per
+   * value. The metric path is made of "jmx", the section and the member,
+   * while the host and the key properties of the object name are added as
+   * tags. Booleans are written as 1 and 0, other values are left out.
+   */
+  class GraphiteWriter extends OutputWriter {
+
+    GraphiteWriter(Writer writer) {
+      super(writer);
+    }
+
+    @Override
+    public void write(Section section, long time) throws IOException {
+      String host = getHostName(section);
+      ObjectName on = getResolvedName(section);
+      Map<String, String> keys = on != null ? getKeyProperties(on) : null;
+      for (MemberDetails details : section.getMembers()) {
+        Object value = section.getValue(details);
+        if (value instanceof Boolean)
+          value = ((Boolean) value).booleanValue() ? 1 : 0;
+        if (!(value instanceof Number)) continue;
+        double d = ((Number) value).doubleValue();
+        if (Double.isNaN(d) || Double.isInfinite(d)) continue;
+        writeName(host, section.getName(), keys, details.getName());
+        writeValue(value);
+        writer.write(' ');
+        writeLong(writer, time / 1000, buffer);
+        writer.write('\n');
+      }
+    }
+
+    @Override
+    public void writePoint(long time, String host, String section,
+        String object, String member, double value) throws IOException {
+      if (Double.isNaN(value) || Double.isInfinite(value)) return;
+      ObjectName on = toObjectName(object);
+      writeName(host, section, on != null ? getKeyProperties(on) : null,
+        member);
+      writeDouble(value);
+      writer.write(' ');
+      writeLong(writer, time / 1000, buffer);
+      writer.write('\n');
+    }
+
+    @Override
+    public void writeEvent(long time, String host, String section,
+        ObjectName on, Map<String, Object> values) throws IOException {
+      Map<String, String> keys = on != null ? getKeyProperties(on) : null;
+      for (Map.Entry<String, Object> entry : values.entrySet()) {
+        Object value = entry.getValue();
+        if (!(value instanceof Number)) continue;
+        double d = ((Number) value).doubleValue();
+        if (Double.isNaN(d) || Double.isInfinite(d)) continue;
+        writeName(host, section, keys, entry.getKey());
+        writeValue(value);
+        writer.write(' ');
+        writeLong(writer, time / 1000, buffer);
+        writer.write('\n');
+      }
+    }
+
+    private void writeName(String host, String section,
+        Map<String, String> keys, String member) throws IOException {
+      writer.write("jmx.");
+      writePath(section, false);
+      writer.write('.');
+      writePath(member, true);
+      writeTag("host", host);
+      if (keys != null)
+        for (Map.Entry<String, String> key : keys.entrySet())
+          writeTag(key.getKey(), key.getValue());
+      writer.write(' ');
+    }
+
+    private void writePath(String path, boolean dots) throws IOException {
+      for (int n = 0; n < path.length(); n++) {
+        char c = path.charAt(n);
+        boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+          (c >= '0' && c <= '9') || c == '_' || c == '-' || (dots && c == '.');
+        writer.write(valid ? c : '_');
+      }
+    }
+
+    private void writeTag(String name, String value) throws IOException {
+      if (value == null || value.length() == 0) return;
+      writer.write(';');
+      writePath(name, false);
+      writer.write('=');
+      for (int n = 0; n < value.length(); n++) {
+        char c = value.charAt(n);
+        writer.write(c == ';' || c == '~' || c <= ' ' ? '_' : c);
+      }
+    }
+  }
+
+  /**
+   * Small file based store for state that is kept between runs. Each line
+   * holds a key, the time the entry was written and its value, separated by
+   * tabs. Changes are merged into the file under an exclusive lock, so that
+   * concurrent processes do not lose each others entries.
+   */
+  class StateFile {
+    private File file = null;
+    private Map<String, String[]> entries = new HashMap<String, String[]>();
+    private Map<String, String[]> changes = new HashMap<String, String[]>();
+
+    public StateFile(File file) throws IOException {
+      this.file = file;
+      read(entries);
+    }
+
+    /**
+     * Returns the value for a key when it is not older than the given age.
+     *
+     * @param key  The key of the entry.
+     * @param maxAge  The maximum age in milliseconds.
+     * @return The value or <code>null</code>.
+     */
+    public synchronized String get(String key, long maxAge) {
+      String[] entry = entries.get(key);
+      if (entry == null) return null;
+      long time = Long.parseLong(entry[0]);
+      return System.currentTimeMillis() - time <= maxAge ? entry[1] : null;
+    }
+
+    public synchronized void put(String key, String value) {
+      String[] entry = { String.valueOf(System.currentTimeMillis()), value };
+      entries.put(key, entry);
+      changes.put(key, entry);
+    }
+
+    public synchronized void remove(String key) {
+      entries.remove(key);
+      changes.put(key, null);
+    }
+
+    /**
+     * Writes the changes back into the file.
+     *
+     * @throws IOException When writing the file fails.
+     */
+    public synchronized void save() throws IOException {
+      if (changes.size() == 0) return;
+      file.getParentFile().mkdirs();
+      RandomAccessFile lockFile =
+        new RandomAccessFile(new File(file.getPath() + ".lock"), "rw");
+      try {
+        FileLock lock = lockFile.getChannel().lock();
+        try {
+          // merge with what other processes wrote in the meantime
+          Map<String, String[]> current = new LinkedHashMap<String, String[]>();
+          read(current);
+          for (Map.Entry<String, String[]> change : changes.entrySet()) {
+            if (change.getValue() != null)
+              current.put(change.getKey(), change.getValue());
+            else
+              current.remove(change.getKey());
+          }
+          File tmp = new File(file.getPath() + ".tmp");
+          PrintWriter pw = new PrintWriter(new OutputStreamWriter(
+            new FileOutputStream(tmp), "UTF8"));
+          for (Map.Entry<String, String[]> entry : current.entrySet())
+            pw.println(entry.getKey() + "\t" + entry.getValue()[0] + "\t" +
+              entry.getValue()[1]);
+          pw.close();
+          Files.move(tmp.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+          changes.clear();
+        } finally {
+          lock.release();
+        }
+      } finally {
+        lockFile.close();
+      }
+    }
+
+    private void read(Map<String, String[]> map) throws IOException {
+      if (!file.exists()) return;
+      BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), "UTF8"));
+      try {
+        String line = in.readLine();
+        while (line != null) {
+          String[] parts = line.split("\t", 3);
+          if (parts.length == 3) try {
+            Long.parseLong(parts[1]);
+            map.put(parts[0], new String[] { parts[1], parts[2] });
+          } catch (NumberFormatException e) {
+            // skip corrupt lines
+          }
+          line = in.readLine();
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Holds a snapshot of the values of one MBean, shared between processes
+   * through a file in the state directory. Only plain strings, numbers and
+   * booleans are stored, each with a type tag, anything else is left out.
+   * Readers map the file into memory and only decode the values when the
+   * snapshot is fresh enough. Writers replace the file atomically, so readers
+   * never see a partial snapshot, and hold a lock while they fetch the
+   * values, so that only one process refreshes a stale snapshot.
+   */
+  class SnapshotFile {
+    private static final int MAGIC = 0x4a54534f;
+    private static final byte STRING = 1;
+    private static final byte LONG = 2;
+    private static final byte INTEGER = 3;
+    private static final byte SHORT = 4;
+    private static final byte BYTE = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte FLOAT = 7;
+    private static final byte BOOLEAN = 8;
+    private static final byte MISSING = 9;
+    private File file = null;
+    private String key = null;
+    private ReentrantLock localLock = null;
+    private RandomAccessFile lockFile = null;
+    private FileLock lock = null;
+
+    public SnapshotFile(File file, String key) {
+      this.file = file;
+      this.key = key;
+    }
+
+    /**
+     * Reads the snapshot when it is not older than the given age.
+     *
+     * @param maxAge  The maximum age in milliseconds.
+     * @return The values by member name or <code>null</code>.
+     */
+    public Map<String, Object> read(long maxAge) {
+      if (!file.exists()) return null;
+      try {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+          FileChannel channel = raf.getChannel();
+          MappedByteBuffer buffer =
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+          if (buffer.remaining() < 14 || buffer.getInt() != MAGIC) return null;
+          long time = buffer.getLong();
+          if (System.currentTimeMillis() - time > maxAge) return null;
+          // guard against hash collisions of the file name
+          if (!key.equals(readString(buffer))) return null;
+          Map<String, Object> values = new HashMap<String, Object>();
+          for (int n = buffer.getInt(); n > 0; n--) {
+            String name = readString(buffer);
+            byte type = buffer.get();
+            switch (type) {
+              case STRING: values.put(name, readString(buffer)); break;
+              case LONG: values.put(name, buffer.getLong()); break;
+              case INTEGER: values.put(name, buffer.getInt()); break;
+              case SHORT: values.put(name, buffer.getShort()); break;
+              case BYTE: values.put(name, buffer.get()); break;
+              case DOUBLE: values.put(name, buffer.getDouble()); break;
+              case FLOAT: values.put(name, buffer.getFloat()); break;
+              case BOOLEAN: values.put(name, buffer.get() != 0); break;
+              case MISSING: values.put(name, null); break;
+              default:
+                if (verbose) System.out.println("Invalid snapshot type -> " +
+                  type + ", file -> " + file);
+                return null;
+            }
+          }
+          return values;
+        } finally {
+          raf.close();
+        }
+      } catch (Exception e) {
+        if (verbose) System.out.println("Could not read snapshot -> " + e);
+        return null;
+      }
+    }
+
+    private String readString(ByteBuffer buffer)
+    throws UnsupportedEncodingException {
+      byte[] b = new byte[buffer.getInt()];
+      buffer.get(b);
+      return new String(b, "UTF8");
+    }
+
+    /**
+     * Writes the snapshot, replacing the previous one. Values other than
+     * strings, numbers and booleans are skipped, and <code>null</code> values
+     * are stored as missing attributes. The caller must hold the lock, see
+     * {@link #lock()}.
+     *
+     * @param values  The values by member name.
+     * @throws IOException When writing the file fails.
+     */
+    public void write(Map<String, Object> values) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(MAGIC);
+      out.writeLong(System.currentTimeMillis());
+      writeString(out, key);
+      List<Map.Entry<String, Object>> entries =
+        new ArrayList<Map.Entry<String, Object>>();
+      for (Map.Entry<String, Object> entry : values.entrySet())
+        if (getType(entry.getValue()) != 0) entries.add(entry);
+      out.writeInt(entries.size());
+      for (Map.Entry<String, Object> entry : entries) {
+        Object value = entry.getValue();
+        byte type = getType(value);
+        writeString(out, entry.getKey());
+        out.writeByte(type);
+        switch (type) {
+          case STRING: writeString(out, (String) value); break;
+          case LONG: out.writeLong((Long) value); break;
+          case INTEGER: out.writeInt((Integer) value); break;
+          case SHORT: out.writeShort((Short) value); break;
+          case BYTE: out.writeByte((Byte) value); break;
+          case DOUBLE: out.writeDouble((Double) value); break;
+          case FLOAT: out.writeFloat((Float) value); break;
+          case BOOLEAN: out.writeBoolean((Boolean) value); break;
+          default: // missing, no value
+        }
+      }
+      out.close();
+      File tmp = new File(file.getPath() + ".tmp");
+      FileOutputStream fos = new FileOutputStream(tmp);
+      try {
+        bytes.writeTo(fos);
+      } finally {
+        fos.close();
+      }
+      Files.move(tmp.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private byte getType(Object value) {
+      if (value == null) return MISSING;
+      if (value instanceof String) return STRING;
+      if (value instanceof Long) return LONG;
+      if (value instanceof Integer) return INTEGER;
+      if (value instanceof Short) return SHORT;
+      if (value instanceof Byte) return BYTE;
+      if (value instanceof Double) return DOUBLE;
+      if (value instanceof Float) return FLOAT;
+      if (value instanceof Boolean) return BOOLEAN;
+      return 0;
+    }
+
+    private void writeString(DataOutputStream out, String string)
+    throws IOException {
+      byte[] b = string.getBytes("UTF8");
+      out.writeInt(b.length);
+      out.write(b);
+    }
+
+    /**
+     * Locks the snapshot against other threads and processes, waiting until
+     * they are done.
+     *
+     * @throws IOException When locking fails.
+     */
+    public void lock() throws IOException {
+      ReentrantLock local = new ReentrantLock();
+      ReentrantLock other = snapshotLocks.putIfAbsent(file.getPath(), local);
+      localLock = other != null ? other : local;
+      localLock.lock();
+      try {
+        file.getParentFile().mkdirs();
+        lockFile = new RandomAccessFile(new File(file.getPath() + ".lock"), "rw");
+        lock = lockFile.getChannel().lock();
+      } catch (IOException e) {
+        unlock();
+        throw e;
+      }
+    }
+
+    /**
+     * Releases the lock taken with {@link #lock()}.
+     */
+    public void unlock() {
+      try {
+        if (lock != null) lock.release();
+        if (lockFile != null) lockFile.close();
+      } catch (IOException e) {
+        System.err.println("WARNING: Could not release snapshot lock -> " + e);
+      } finally {
+        lock = null;
+        lockFile = null;
+        localLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Constructs a new instance of this class and executes the action.
+   *
+   * @param args  The command line arguments.
+   * @throws InstanceNotFoundException When instantiating the JMX bean fails.
+   * @throws IntrospectionException When instantiating the JMX bean fails.
+   * @throws ReflectionException When instantiating the JMX bean fails.
+   * @throws IOException When talking to the remote JMX server failed.
+   */
+  public JMXToolkit(String[] args)
+  throws InstanceNotFoundException, IntrospectionException, ReflectionException,
+  IOException {
+    int exitCode = 0;
+    parseArgs(args);
+    String action = getAction();
+    if (verbose) System.out.println("Action -> " + action);
+    try {
+      if (action.equals("serve")) serve();
+      else exitCode = execute(action);
+    } finally {
+      closeConnections();
+      saveState();
+      writeTimings();
+    }
+    if (verbose) System.out.println("Exit code -> " + exitCode);
+    if (verbose) System.out.println("Done.");
+    System.exit(exitCode);
+  }
+
+  /**
+   * Constructs a new instance that only parses the arguments, without
+   * executing the action. This and the package-private methods are used
+   * by the benchmarks in the <code>jmh</code> module.
+   *
+   * @param args  The command line arguments.
+   * @param out  The stream to print the results to.
+   */
+  JMXToolkit(String[] args, PrintStream out) {
+    this.out = out;
+    parseArgs(args);
+  }
+
+  /**
+   * Constructs a new instance for a single request in server mode. It shares
+   * the open connections and parsed configurations with the server.
+   *
+   * @param server  The server instance.
+   * @param out  The stream to print the results to.
+   */
+  private JMXToolkit(JMXToolkit server, PrintStream out) {
+    this.connectors = server.connectors;
+    this.configs = server.configs;
+    this.stateFiles = server.stateFiles;
+    this.counters = server.counters;
+    this.timings = server.timings;
+    this.snapshotLocks = server.snapshotLocks;
+    this.out = out;
+  }
+
+  /**
+   * Returns the action to perform, falling back to the default.
+   *
+   * @return The action name.
+   */
+  private String getAction() {
+    String action = params.get("-a");
+    if (action == null) action = params.get("-w") != null ? "check" : "query";
+    return action;
+  }
+
+  /**
+   * Executes the given action.
+   *
+   * @param action  The action to perform.
+   * @return The exit code.
+   * @throws InstanceNotFoundException When instantiating the JMX bean fails.
+   * @throws IntrospectionException When instantiating the JMX bean fails.
+   * @throws ReflectionException When instantiating the JMX bean fails.
+   * @throws IOException When talking to the remote JMX server failed.
+   */
+  private int execute(String action)
+  throws InstanceNotFoundException, IntrospectionException, ReflectionException,
+  IOException {
+    int exitCode = 0;
+    if (action.equals("walk")) walk();
+    else if (action.equals("history")) readHistory();
+    else {
+      if (verbose) System.out.println("Reading properties...");
+      readProperties();
+      if (action.equals("create")) {
+        createConfig();
+        writeProperties();
+      } else if (action.equals("check")) {
+        exitCode = checkValue();
+      } else if (action.equals("checkall")) {
+        exitCode = checkAllValues();
+      } else if (action.equals("query")) {
+        queryValues();
+        outputResults();
+      } else if (action.equals("sample")) {
+        sampleValues();
+      } else if (action.equals("subscribe")) {
+        subscribeEvents();
+      } else if (action.equals("expose")) {
+        exposeValues();
+      } else if (action.equals("simulate")) {
+        createSimulator().run();
+      } else if (action.equals("compile")) {
+        writeCompiled(new File(params.get("-f") + ".bin"));
+      } else if (action.equals("encode")) {
+        out.println(URLEncoder.encode(params.get("-m"), "UTF8"));
+      } else {
+        System.err.println("Unknown action -> " + action);
+        exitCode = -99;
+      }
+    }
+    return exitCode;
+  }
+
+  /**
+   * Runs as a long lived server that reads requests line by line, either
+   * from the console or from clients connecting to a local port. Each
+   * request has the same arguments as a normal invocation, and is answered
+   * with one line holding the exit code and the output.
+   *
+   * @throws IOException When reading or answering the requests fails.
+   */
+  private void serve() throws IOException {
+    configs = new HashMap<String, ConfigDetails>();
+    String port = params.get("-s");
+    if (port == null) {
+      if (verbose) System.out.println("Serving requests from console...");
+      serveClient(System.in, System.out);
+      return;
+    }
+    ServerSocket server = new ServerSocket(Integer.parseInt(port), 50,
+      InetAddress.getLoopbackAddress());
+    if (verbose) System.out.println("Serving requests on port -> " + port);
+    try {
+      while (true) {
+        final Socket socket = server.accept();
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              serveClient(socket.getInputStream(), socket.getOutputStream());
+            } catch (IOException e) {
+              System.err.println("WARNING: Client failed -> " + e);
+            } finally {
+              try {
+                socket.close();
+              } catch (IOException e) {
+                // ignore
+              }
+            }
+          }
+        }, "client-" + socket.getPort());
+        thread.setDaemon(true);
+        thread.start();
+      }
+    } finally {
+      server.close();
+    }
+  }
+
+  /**
+   * Reads requests from a client until it disconnects or sends "quit".
+   *
+   * @param in  The stream to read the requests from.
+   * @param os  The stream to write the answers to.
+   * @throws IOException When reading or answering the requests fails.
+   */
+  private void serveClient(InputStream in, OutputStream os) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF8"));
+    PrintStream writer = new PrintStream(os, true, "UTF8");
+    String line = reader.readLine();
+    while (line != null) {
+      String tl = line.trim();
+      if (tl.equals("quit") || tl.equals("exit")) break;
+      if (tl.equals("stats")) {
+        StringBuilder sb = new StringBuilder("0 [");
+        appendTimings(sb, ",");
+        writer.println(sb.append(']'));
+        writer.flush();
+      } else if (tl.length() > 0) {
+        writer.println(handleRequest(splitArguments(tl)));
+        writer.flush();
+      }
+      line = reader.readLine();
+    }
+  }
+
+  /**
+   * Executes a single request in server mode. Requests are handled one at a
+   * time, since they share the connections and configurations.
+   *
+   * @param args  The request arguments.
+   * @return The answer line, i.e. the exit code followed by the output.
+   */
+  private synchronized String handleRequest(String[] args) {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    PrintStream ps = null;
+    try {
+      ps = new PrintStream(buffer, true, "UTF8");
+    } catch (UnsupportedEncodingException e) {
+      // this should never happen
+      return "-99 " + e;
+    }
+    JMXToolkit request = new JMXToolkit(this, ps);
+    int exitCode = 0;
+    List<String> ar = Arrays.asList(args);
+    if (ar.size() == 0 || ar.contains("-h")) {
+      ps.print("Bad request, use the same arguments as on the command line.");
+      exitCode = -99;
+    } else try {
+      request.parseArgs(args);
+      // the console is used for the answers, so keep it clean
+      request.verbose = false;
+      request.debug = false;
+      String rejection = checkRequest(request);
+      if (rejection != null) {
+        ps.print(rejection);
+        exitCode = -99;
+      } else {
+        exitCode = request.execute(request.getAction());
+      }
+    } catch (Exception e) {
+      exitCode = getErrorCode(e, ps);
+      // the connection may be broken, reconnect on the next request
+      if (e instanceof IOException) request.evictConnections();
+    }
+    saveState();
+    String res = "";
+    try {
+      res = buffer.toString("UTF8").trim().replaceAll("\\s*[\\r\\n]+\\s*", " ");
+    } catch (UnsupportedEncodingException e) {
+      // this should never happen
+    }
+    if (verbose) System.err.println("Request -> " + Arrays.toString(args) +
+      ", exit code -> " + exitCode);
+    return exitCode + " " + res;
+  }
+
+  /**
+   * Checks if a request may be executed in server mode. Only reading actions
+   * are allowed, and options naming files must name the same files as the
+   * options the server was started with, since clients are not trusted to
+   * write anywhere else.
+   *
+   * @param request  The parsed request.
+   * @return The reason to reject the request, or <code>null</code>.
+   * @throws IOException When resolving a file name fails.
+   */
+  private String checkRequest(JMXToolkit request) throws IOException {
+    String action = request.getAction();
+    if (!SERVE_ACTIONS.contains(action))
+      return "Action not supported in server mode -> " + action;
+    for (String option : SERVE_FILE_OPTIONS) {
+      if (!request.params.containsKey(option)) continue;
+      String path = request.params.get(option);
+      String own = params.get(option);
+      boolean same = path == null ? own == null && params.containsKey(option) :
+        own != null && new File(path).getCanonicalPath().equals(
+          new File(own).getCanonicalPath());
+      if (!same) return "Option " + option +
+        " must be the same as the server's in server mode";
+    }
+    return null;
+  }
+
+  /**
+   * Splits a request line into its arguments. Arguments may be enclosed in
+   * single or double quotes to include spaces.
+   *
+   * @param line  The line to split.
+   * @return The arguments.
+   */
+  private String[] splitArguments(String line) {
+    List<String> res = new ArrayList<String>();
+    StringBuilder arg = null;
+    char quote = 0;
+    for (int n = 0; n < line.length(); n++) {
+      char c = line.charAt(n);
+      if (quote != 0) {
+        if (c == quote) quote = 0;
+        else arg.append(c);
+      } else if (c == '"' || c == '\'') {
+        if (arg == null) arg = new StringBuilder();
+        quote = c;
+      } else if (Character.isWhitespace(c)) {
+        if (arg != null) res.add(arg.toString());
+        arg = null;
+      } else {
+        if (arg == null) arg = new StringBuilder();
+        arg.append(c);
+      }
+    }
+    if (arg != null) res.add(arg.toString());
+    return res.toArray(new String[res.size()]);
+  }
+
+  /**
+   * Checks if a value is within certain boundaries.
+   * @return The error code.
+   * @throws IOException When getting the value fails.
+   */
+  private int checkValue() throws IOException {
+    if (verbose) System.out.println("Checking value...");
     queryValues();
     CheckDetails check = null;
     if (params.get("-w") != null)
       check = new CheckDetails(params.get("-w"));
     Section section = getSection(params.get("-o"));
     String attr = params.get("-q");
-    MemberDetails details = section.getMember(attr);
-    if (check == null && details.getCheckDetails() != null)
-      check = details.getCheckDetails();
-    if (check != null) {
-      return performCheck(check, details);
+    MemberDetails details = section.getMember(attr);
+    if (check == null && details.getCheckDetails() != null)
+      check = details.getCheckDetails();
+    // counters have no rate until a previous sample is known
+    if (section.getValue(details) == null && details.isCounter())
+      throw new IOException("No previous sample for counter -> " + attr);
+    if (check != null) {
+      StringBuilder message = new StringBuilder();
+      int res = performCheck(check, details, section.getValue(details), message);
+      if (message.length() > 0) out.println(message);
+      return res;
+    } else {
+      throw new IOException("No check defined.");
+    }
+  }
+
+  /**
+   * Checks all members that have check details, printing one line per
+   * check. With <code>-N</code> the results are also written as passive
+   * check results into the given Nagios command file.
+   *
+   * @return The most severe exit code of all checks.
+   * @throws IOException When writing the command file fails.
+   */
+  private int checkAllValues() throws IOException {
+    if (verbose) System.out.println("Checking all values...");
+    // only read the sections and members that have checks
+    checkedOnly = true;
+    List<Section> checkSections = new ArrayList<Section>();
+    for (Section section : getQuerySections())
+      if (getReadMembers(section).size() > 0) checkSections.add(section);
+    int threads = params.get("-P") != null ? Integer.parseInt(params.get("-P")) : 1;
+    collectValues(checkSections, threads);
+    String commandFile = params.get("-N");
+    PrintWriter commands = commandFile != null ? new PrintWriter(
+      new OutputStreamWriter(new FileOutputStream(commandFile, true), "UTF8")) :
+      null;
+    long time = System.currentTimeMillis() / 1000;
+    int worst = 0;
+    try {
+      for (Section section : checkSections) {
+        for (MemberDetails details : section.getMembers()) {
+          CheckDetails check = details.getCheckDetails();
+          if (check == null) continue;
+          StringBuilder message = new StringBuilder();
+          int code = NAGIOS_UNKNOWN;
+          Object value = section.getValue(details);
+          if (value != null) {
+            code = performCheck(check, details, value, message);
+            if (message.length() == 0) message.append(value);
+          } else {
+            message.append(section.isFailed() ? "Query failed" :
+              details.isCounter() ? "No previous sample" : "No value");
+          }
+          String service = section.getName() + "/" + details.getName();
+          String output = message.toString().replaceAll("[\\r\\n]+", " ");
+          out.println(service + " " + getStatusName(code) + ": " + output);
+          if (commands != null)
+            commands.println("[" + time + "] PROCESS_SERVICE_CHECK_RESULT;" +
+              getHostName(section) + ";" + service + ";" + code + ";" + output);
+          if (getSeverity(code) > getSeverity(worst)) worst = code;
+        }
+      }
+    } finally {
+      if (commands != null) commands.close();
+    }
+    return worst;
+  }
+
+  /**
+   * Returns the Nagios status name for an exit code.
+   *
+   * @param code  The exit code.
+   * @return The status name.
+   */
+  private String getStatusName(int code) {
+    switch (code) {
+      case 0: return "OK";
+      case 1: return "WARNING";
+      case 2: return "CRITICAL";
+      case NAGIOS_UNKNOWN: return "UNKNOWN";
+      default: return "CODE " + code;
+    }
+  }
+
+  /**
+   * Ranks exit codes the way Nagios does, i.e. critical is worse than
+   * unknown, which is worse than warning.
+   *
+   * @param code  The exit code.
+   * @return The severity, higher is worse.
+   */
+  private int getSeverity(int code) {
+    switch (code) {
+      case 0: return 0;
+      case 1: return 1;
+      case NAGIOS_UNKNOWN: return 2;
+      case 2: return 3;
+      default: return code < 0 ? 4 : code + 4;
+    }
+  }
+
+  /**
+   * Does the actual check of a value.
+   *
+   * @param check  The check to perform.
+   * @param details  The details of the checked member.
+   * @param val  The value to check.
+   * @param message  Receives the message of the check, if there is one.
+   * @return The error code.
+   */
+  private int performCheck(CheckDetails check, MemberDetails details,
+      Object val, StringBuilder message) {
+    if (verbose) System.out.println("Details -> " + details + ", value=" + val);
+    if (verbose) System.out.println("Check -> " + check);
+    return check.evaluate(val, message);
+  }
+
+  /**
+   * Parses a number without relying on exceptions for the common case of
+   * values that are obviously not numeric.
+   *
+   * @param text  The text to parse.
+   * @return The number or {@link Double#NaN} if it is not one.
+   */
+  private static double parseNumber(String text) {
+    int length = text.length();
+    if (length == 0) return Double.NaN;
+    char first = text.charAt(0);
+    if (!(first >= '0' && first <= '9') && first != '-' && first != '+' &&
+        first != '.' && first != 'I' && first != ' ') return Double.NaN;
+    try {
+      return Double.parseDouble(text);
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  /**
+   * Returns a named section or <code>null</code>.
+   *
+   * @param name  The name of the section to retrieve.
+   * @return The section or <code>null</code>.
+   */
+  private Section getSection(String name) {
+    for (Section section : sections)
+      if (section.getName().equals(name) || section.matches(name))
+        return section;
+    return null;
+  }
+
+  /**
+   * Creates a simulator for the sections read, serving them on the ports
+   * given with <code>-s</code> or those of their URLs.
+   *
+   * @return The simulator, not started yet.
+   */
+  JMXSimulator createSimulator() {
+    String port = params.get("-s");
+    return new JMXSimulator(this, sections,
+      port != null ? Integer.valueOf(port) : null, params.get("-y"), verbose);
+  }
+
+  /**
+   * Reads the properties file.
+   *
+   * @throws IOException When the config file is corrupt.
+   */
+  void readProperties() throws IOException {
+    // reuse the parsed configuration in server mode
+    String fn = params.get("-f");
+    File file = fn != null ? new File(fn) : null;
+    String key = fn + "|" + variables;
+    if (configs != null && fn != null) {
+      ConfigDetails config = configs.get(key);
+      if (config != null && config.getLastModified() == file.lastModified()) {
+        for (Section section : config.getSections()) section.clearValues();
+        sections.addAll(config.getSections());
+        return;
+      }
+    }
+    // prefer the compiled form unless the text was changed since
+    File compiled = fn != null ? new File(fn + ".bin") : null;
+    if (compiled != null && compiled.exists() && !getAction().equals("compile") &&
+        (!file.exists() || isCompiledCurrent(compiled, file))) {
+      if (verbose) System.out.println("Loading compiled configuration -> " +
+        compiled);
+      readCompiled(compiled);
+      resolveExtends();
+      expandHosts();
+      if (configs != null)
+        configs.put(key, new ConfigDetails(file.lastModified(),
+          new ArrayList<Section>(sections)));
+      if (debug) System.out.println("config -> " + sections);
+      return;
+    }
+    BufferedReader in = getPropertiesReader();
+    if (in != null) {
+      Section section = null;
+      String line = in.readLine();
+      while (line != null) {
+        String tl = line.trim();
+        // check for empty lines and comments
+        if (!tl.startsWith(";") && !tl.startsWith("#") && tl.length() > 0) {
+          // check for start of a section
+          if (tl.startsWith("[")) {
+            section = new Section(tl);
+            sections.add(section);
+          } else if (section != null) {
+            parseLine(section, tl);
+          }
+        }
+        line = in.readLine();
+      }
+      in.close();
+    }
+    resolveExtends();
+    expandHosts();
+    if (in != null && configs != null)
+      configs.put(key, new ConfigDetails(file.lastModified(),
+        new ArrayList<Section>(sections)));
+    if (debug) System.out.println("config -> " + sections);
+  }
+
+  /**
+   * Resolves the inheritance of all sections given with <code>@extends</code>
+   * or <code>-i</code>. Unknown parents and cycles are reported and ignored.
+   */
+  private void resolveExtends() {
+    Map<String, Section> byName = new HashMap<String, Section>();
+    for (Section section : sections)
+      if (!byName.containsKey(section.getName()))
+        byName.put(section.getName(), section);
+    Set<Section> done = new HashSet<Section>();
+    for (Section section : sections)
+      resolveExtends(section, byName, new ArrayList<Section>(), done);
+  }
+
+  /**
+   * Replaces every section with a host list by one instance per host, named
+   * <code>&lt;section&gt;@&lt;host&gt;</code>. The options of the section
+   * are applied again for each instance with the <code>HOST</code> variable
+   * set, while the members are shared. Configurations are kept as they are
+   * when they are created or compiled.
+   *
+   * @throws IOException When reading a host list fails.
+   */
+  private void expandHosts() throws IOException {
+    String action = getAction();
+    if (action.equals("create") || action.equals("compile") ||
+        action.equals("simulate")) return;
+    List<Section> expanded = new ArrayList<Section>();
+    for (Section section : sections) {
+      if (section.getHosts() == null) {
+        expanded.add(section);
+        continue;
+      }
+      // apply the options of the parents first, so that children override
+      LinkedList<Section> chain = new LinkedList<Section>();
+      for (Section s = section; s != null; s = s.getParent()) chain.addFirst(s);
+      List<String> hosts = getHosts(section.getHosts());
+      if (verbose) System.out.println("Expanding section -> " +
+        section.getName() + ", hosts -> " + hosts.size());
+      for (String host : hosts) {
+        Section instance = new Section(section.getName() + "@" + host);
+        instance.setTemplate(section.getName());
+        instance.setHost(host);
+        for (Section s : chain) {
+          for (Map.Entry<String, String> entry : s.getInstructions().entrySet()) {
+            String name = entry.getKey();
+            if (name.equalsIgnoreCase("@hosts") ||
+                name.equalsIgnoreCase("@extends")) continue;
+            applyInstruction(instance, name, entry.getValue());
+          }
+        }
+        instance.inherit(section);
+        expanded.add(instance);
+      }
+    }
+    sections.clear();
+    sections.addAll(expanded);
+  }
+
+  /**
+   * Returns the hosts of a host list, which is either a file with one host
+   * per line, given as <code>file:&lt;path&gt;</code>, or a comma separated
+   * list. Each host may contain numeric ranges, e.g.
+   * <code>rs[001-400].example.com</code>.
+   *
+   * @param list  The host list.
+   * @return The hosts.
+   * @throws IOException When reading the host file fails.
+   */
+  private List<String> getHosts(String list) throws IOException {
+    List<String> entries = new ArrayList<String>();
+    if (list.startsWith("file:")) {
+      BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(list.substring(5)), "UTF8"));
+      try {
+        String line = in.readLine();
+        while (line != null) {
+          String tl = line.trim();
+          if (tl.length() > 0 && !tl.startsWith("#") && !tl.startsWith(";"))
+            entries.add(tl);
+          line = in.readLine();
+        }
+      } finally {
+        in.close();
+      }
+    } else {
+      for (String entry : list.split(","))
+        if (entry.trim().length() > 0) entries.add(entry.trim());
+    }
+    List<String> hosts = new ArrayList<String>();
+    for (String entry : entries) expandRange(entry, hosts);
+    return hosts;
+  }
+
+  /**
+   * Expands the first numeric range of a host name, and the following ones
+   * recursively. The width of the start value is kept, so that leading
+   * zeros are retained.
+   *
+   * @param host  The host name, with or without ranges.
+   * @param hosts  Receives the expanded host names.
+   */
+  private void expandRange(String host, List<String> hosts) {
+    int open = host.indexOf('[');
+    int close = host.indexOf(']', open + 1);
+    int dash = host.indexOf('-', open + 1);
+    if (open < 0 || close < 0 || dash < 0 || dash > close) {
+      hosts.add(host);
+      return;
+    }
+    String from = host.substring(open + 1, dash);
+    String to = host.substring(dash + 1, close);
+    long start, end;
+    try {
+      start = Long.parseLong(from);
+      end = Long.parseLong(to);
+    } catch (NumberFormatException e) {
+      System.err.println("WARNING: Invalid host range -> " + host);
+      return;
+    }
+    String prefix = host.substring(0, open);
+    String suffix = host.substring(close + 1);
+    int width = from.length();
+    StringBuilder sb = new StringBuilder();
+    for (long n = start; n <= end; n++) {
+      sb.setLength(0);
+      sb.append(prefix);
+      String number = String.valueOf(n);
+      for (int i = number.length(); i < width; i++) sb.append('0');
+      sb.append(number).append(suffix);
+      expandRange(sb.toString(), hosts);
+    }
+  }
+
+  /**
+   * Resolves the inheritance of one section, resolving its parent first.
+   *
+   * @param section  The section to resolve.
+   * @param byName  The sections by name.
+   * @param path  The sections currently being resolved, to detect cycles.
+   * @param done  The sections that are resolved already.
+   */
+  private void resolveExtends(Section section, Map<String, Section> byName,
+      List<Section> path, Set<Section> done) {
+    if (done.contains(section)) return;
+    String name = section.getExtendsName();
+    if (name != null) {
+      Section parent = byName.get(name);
+      if (parent == null) {
+        System.err.println("WARNING: Could not find section to extend -> " +
+          name + ", section -> " + section.getName());
+      } else if (parent == section || path.contains(parent)) {
+        StringBuilder sb = new StringBuilder();
+        for (Section s : path) sb.append(s.getName()).append(" -> ");
+        sb.append(section.getName()).append(" -> ").append(name);
+        System.err.println("WARNING: Ignoring circular @extends -> " + sb);
+      } else {
+        path.add(section);
+        resolveExtends(parent, byName, path, done);
+        path.remove(path.size() - 1);
+        section.inherit(parent);
+      }
+    }
+    done.add(section);
+  }
+
+  /**
+   * Writes the parsed sections in a compact binary form, which is loaded
+   * instead of the text configuration as long as that is unchanged. The
+   * header records the modification time and length of the text, and all
+   * strings are kept once in a table and referred to by their index. The
+   * special instructions are stored as given, so that variables are still
+   * replaced when loading, while members and checks are stored parsed.
+   *
+   * @param file  The file to write to.
+   * @throws IOException When writing the file fails.
+   */
+  void writeCompiled(File file) throws IOException {
+    Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream body = new DataOutputStream(bytes);
+    body.writeInt(sections.size());
+    for (Section section : sections) {
+      body.writeInt(intern(strings, section.getName()));
+      body.writeInt(section.getInstructions().size());
+      for (Map.Entry<String, String> entry : section.getInstructions().entrySet()) {
+        body.writeInt(intern(strings, entry.getKey()));
+        body.writeInt(intern(strings, entry.getValue()));
+      }
+      body.writeInt(section.getDeclaredMembers().size());
+      for (MemberDetails details : section.getDeclaredMembers()) {
+        body.writeBoolean(details instanceof OperationDetails);
+        body.writeInt(intern(strings, details.getName()));
+        body.writeByte(details.getReturnType().ordinal());
+        body.writeBoolean(details.isCounter());
+        CheckDetails check = details.getCheckDetails();
+        body.writeBoolean(check != null);
+        if (check == null) continue;
+        writeCode(body, check.getOkCode());
+        body.writeInt(intern(strings, check.getOkMessage()));
+        writeCode(body, check.getWarnCode());
+        body.writeInt(intern(strings, check.getWarnMessage()));
+        writeThreshold(body, strings, check.getWarnThreshold());
+        writeCode(body, check.getErrorCode());
+        body.writeInt(intern(strings, check.getErrorMessage()));
+        writeThreshold(body, strings, check.getErrorThreshold());
+      }
+    }
+    body.close();
+    String fn = params.get("-f");
+    File source = fn != null ? new File(fn) : null;
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+      new FileOutputStream(tmp)));
+    try {
+      dos.writeInt(COMPILED_MAGIC);
+      dos.writeInt(COMPILED_VERSION);
+      dos.writeLong(source != null ? source.lastModified() : 0);
+      dos.writeLong(source != null ? source.length() : 0);
+      dos.writeInt(strings.size());
+      for (String string : strings.keySet()) {
+        byte[] b = string.getBytes("UTF8");
+        dos.writeInt(b.length);
+        dos.write(b);
+      }
+      bytes.writeTo(dos);
+    } finally {
+      dos.close();
+    }
+    Files.move(tmp.toPath(), file.toPath(),
+      StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    if (verbose) System.out.println("Compiled configuration -> " + file +
+      ", sections -> " + sections.size() + ", strings -> " + strings.size());
+  }
+
+  private int intern(Map<String, Integer> strings, String string) {
+    if (string == null) return -1;
+    Integer index = strings.get(string);
+    if (index == null) {
+      index = strings.size();
+      strings.put(string, index);
+    }
+    return index;
+  }
+
+  private void writeCode(DataOutputStream out, Integer code) throws IOException {
+    out.writeInt(code != null ? code : Integer.MIN_VALUE);
+  }
+
+  private void writeThreshold(DataOutputStream out, Map<String, Integer> strings,
+      Threshold threshold) throws IOException {
+    out.writeInt(intern(strings, threshold != null ? threshold.getText() : null));
+    out.writeInt(intern(strings, threshold != null && !threshold.isRange() ?
+      threshold.getComparator().getSymbol() : null));
+  }
+
+  /**
+   * Checks whether a compiled configuration was written from the text
+   * configuration as it is now, i.e. with the same modification time and
+   * length. Comparing with the time the compiled form was written would not
+   * notice a text changed within the resolution of the file times.
+   *
+   * @param compiled  The compiled configuration.
+   * @param source  The text configuration.
+   * @return <code>true</code> when the compiled form is current.
+   * @throws IOException When reading the compiled configuration fails.
+   */
+  private boolean isCompiledCurrent(File compiled, File source)
+  throws IOException {
+    RandomAccessFile in = new RandomAccessFile(compiled, "r");
+    try {
+      return in.length() >= 24 && in.readInt() == COMPILED_MAGIC &&
+        in.readInt() == COMPILED_VERSION &&
+        in.readLong() == source.lastModified() &&
+        in.readLong() == source.length();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads a configuration written by {@link #writeCompiled(File)} using a
+   * memory-mapped file.
+   *
+   * @param file  The compiled configuration.
+   * @throws IOException When the file is corrupt.
+   */
+  private void readCompiled(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      MappedByteBuffer buffer =
+        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.getInt() != COMPILED_MAGIC ||
+          buffer.getInt() != COMPILED_VERSION)
+        throw new IOException("Unknown compiled configuration format -> " + file);
+      // skip the modification time and length of the text
+      buffer.position(buffer.position() + 16);
+      String[] strings = new String[buffer.getInt()];
+      for (int n = 0; n < strings.length; n++) {
+        byte[] b = new byte[buffer.getInt()];
+        buffer.get(b);
+        strings[n] = new String(b, "UTF8");
+      }
+      ReturnTypes[] types = ReturnTypes.values();
+      int count = buffer.getInt();
+      for (int n = 0; n < count; n++) {
+        Section section = new Section(readString(buffer, strings));
+        int instructions = buffer.getInt();
+        for (int i = 0; i < instructions; i++) {
+          String name = readString(buffer, strings);
+          String value = readString(buffer, strings);
+          section.getInstructions().put(name, value);
+          applyInstruction(section, name, value);
+        }
+        int members = buffer.getInt();
+        for (int m = 0; m < members; m++) {
+          boolean operation = buffer.get() != 0;
+          String name = readString(buffer, strings);
+          ReturnTypes type = types[buffer.get()];
+          boolean counter = buffer.get() != 0;
+          CheckDetails check = null;
+          if (buffer.get() != 0) {
+            Integer okCode = readCode(buffer);
+            String okMessage = readString(buffer, strings);
+            Integer warnCode = readCode(buffer);
+            String warnMessage = readString(buffer, strings);
+            Threshold warn = readThreshold(buffer, strings);
+            Integer errorCode = readCode(buffer);
+            String errorMessage = readString(buffer, strings);
+            Threshold error = readThreshold(buffer, strings);
+            check = new CheckDetails(okCode, okMessage, warnCode, warnMessage,
+              warn, errorCode, errorMessage, error);
+          }
+          section.add(operation ?
+            new OperationDetails(name, type, counter, check) :
+            new AttributeDetails(name, type, counter, check));
+        }
+        sections.add(section);
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Corrupt compiled configuration -> " + file, e);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private String readString(ByteBuffer buffer, String[] strings) {
+    int index = buffer.getInt();
+    return index >= 0 ? strings[index] : null;
+  }
+
+  private Integer readCode(ByteBuffer buffer) {
+    int code = buffer.getInt();
+    return code != Integer.MIN_VALUE ? Integer.valueOf(code) : null;
+  }
+
+  private Threshold readThreshold(ByteBuffer buffer, String[] strings) {
+    String text = readString(buffer, strings);
+    String comparator = readString(buffer, strings);
+    return text != null ? new Threshold(text, comparator) : null;
+  }
+
+  /**
+   * Tries to find the properties on the local file system first and then
+   * using the classloader.
+   *
+   * @return The reader instance or <code>null</code> if not found.
+   * @throws FileNotFoundException When the properties file cannot be found.
+   */
+  private BufferedReader getPropertiesReader() throws FileNotFoundException {
+    InputStream in = null;
+    String fn = params.get("-f");
+    if (fn != null) {
+      File f = new File(fn);
+      if (f.exists()) {
+        in = new FileInputStream(f);
+      } else {
+        in = JMXToolkit.class.getClassLoader().getResourceAsStream(fn);
+      }
+      if (in == null)
+        System.err.println("WARNING: Could not find configuration file -> " + fn);
+    }
+    return in != null ? new BufferedReader(new InputStreamReader(in)) : null;
+  }
+
+  /**
+   * Parses a configuration line. Adds the details into the given section.
+   *
+   * @param section  The parent section.
+   * @param line  The line to parse.
+   */
+  void parseLine(Section section, String line) {
+    String[] atp = line.split("=", 2);
+    String name = atp[0];
+    // check if we have a special instruction line
+    if (atp.length > 1 && name.startsWith("@")) {
+      section.getInstructions().put(name, atp[1]);
+      applyInstruction(section, name, atp[1]);
+      return;
+    }
+    // otherwise assume an attribute or an operation
+    String data = atp.length > 1 ? atp[1] : null;
+    // operations have a leading "*" - which would be illegal otherwise
+    MemberDetails details = !line.startsWith("*") ?
+      new AttributeDetails(name, data) :
+      new OperationDetails(name.substring(1), data);
+    section.add(details);
+  }
+
+  /**
+   * Applies a special instruction to a section, after replacing the
+   * variables in its value.
+   *
+   * @param section  The section to apply the instruction to.
+   * @param name  The name of the instruction, including the leading "@".
+   * @param value  The value as given in the configuration.
+   */
+  private void applyInstruction(Section section, String name, String value) {
+    // only scan for variables when there are any
+    String val1 = value, val2 = value;
+    if (value.indexOf("${") >= 0) {
+      val1 = replaceVariables(value, true, section);
+      val2 = replaceVariables(value, false, section);
+    }
+    if (name.equalsIgnoreCase("@object")) section.setObject(val2);
+    if (name.equalsIgnoreCase("@regexp")) section.setRegexp(val2);
+    if (name.equalsIgnoreCase("@url")) section.setURL(val1);
+    if (name.equalsIgnoreCase("@extends")) section.setExtendsName(val1);
+    if (name.equalsIgnoreCase("@interval")) section.setInterval(val1);
+    if (name.equalsIgnoreCase("@hosts")) section.setHosts(val1);
+    if (name.equalsIgnoreCase("@user")) section.setUser(val1);
+    if (name.equalsIgnoreCase("@password")) section.setPassword(val1);
+  }
+
+  /**
+   * Replaces a variable with a system property, or with a value given as
+   * <code>-D&lt;name&gt;=&lt;value&gt;</code> argument. Sections expanded
+   * from a host list also have the <code>HOST</code> variable set.
+   *
+   * @param value  The value to parse and replace within.
+   * @param keepVars  Flag to keep the variable in place.
+   * @param section  The section the value belongs to, may be <code>null</code>.
+   * @return The value with the replaced variables.
+   */
+  String replaceVariables(String value, boolean keepVars,
+      Section section) {
+    Matcher m = VARS.matcher(value);
+    StringBuilder res = new StringBuilder();
+    int start = 0;
+    while (m.find()) {
+      res.append(value.substring(start, m.start()));
+      // get variable but remove ${...} in the process
+      String v = value.substring(m.start() + 2, m.end() - 1);
+      String[] vp = v.split("\\|");
+      String defVal = vp.length > 1 ? vp[1] : "";
+      String p = section != null && section.getHost() != null &&
+        vp[0].equals("HOST") ? section.getHost() :
+        variables.containsKey(vp[0]) ? variables.get(vp[0]) :
+        System.getProperty(vp[0], defVal);
+      // replace fully when there is no default
+      if (vp.length == 1 || !keepVars) res.append(p);
+      else {
+        //  otherwise keep place holder but replace default
+        String d = p.length() != 0 ? p : vp[1];
+        res.append("${").append(vp[0]).append("|").append(d).append("}");
+      }
+      start = m.end();
+    }
+    res.append(value.substring(start));
+    return res.toString();
+  }
+
+  /**
+   * Processes the request.
+   *
+   * @throws IOException When connecting to the host or retrieval fails.
+   */
+  private void createConfig()
+  throws IOException {
+    if (verbose) System.out.println("Creating configuration...");
+    for (Section section : sections) retrieveMembers(section, true);
+  }
+
+  /**
+   * Retrieves all current attributes and operations for a given object.
+   *
+   * @param section  The section defining the object.
+   * @param close <code>true</code> when the connection should be closed.
+   * @throws IOException When connecting to the host or retrieval fails.
+   */
+  private void retrieveMembers(Section section, boolean close)
+  throws IOException {
+    MBeanServerConnection connection = openConnection(section);
+    try {
+      // iterate over objects
+      for (ObjectName on : findMatches(section)) {
+        MBeanInfo info;
+        long start = System.nanoTime();
+        try {
+          info = connection.getMBeanInfo(on);
+        } catch (Exception e) {
+          throw new IOException(e);
+        }
+        recordTiming("info", section, null, start);
+        addAttributes(section, info);
+        addOperations(section, info);
+      }
+    } finally {
+      closeConnection(section);
+    }
+  }
+
+  /**
+   * Retrieves the attributes and operations of the objects a section refers
+   * to, using the member list cached by an earlier run if possible. Like
+   * {@link #retrieveMembers(Section, boolean)} the members of all matching
+   * objects are combined, and the cache is keyed by the set of these
+   * objects. Cached members are reused until their lifetime expires and the
+   * schema of the remote objects has changed.
+   *
+   * @param section  The section defining the objects.
+   * @throws IOException When connecting to the host or retrieval fails.
+   */
+  private void discoverMembers(Section section) throws IOException {
+    MBeanServerConnection connection = openConnection(section);
+    try {
+      // a plain name needs no query, it is the only match
+      ObjectName query = section.getQueryName();
+      Collection<ObjectName> matches = query != null &&
+        section.getRegexp() == null && !query.isPattern() ?
+        Collections.singletonList(query) : findMatches(section);
+      if (matches.isEmpty())
+        throw new IOException("Could not find matching ObjectName -> " +
+          (section.getRegexp() != null ? section.getRegexp() :
+          section.getObject()));
+      StateFile cache = getStateFile("members");
+      String key = getMembersCacheKey(section, matches);
+      String cached = cache.get(key, getCacheLifetime());
+      if (cached == null) {
+        List<MBeanInfo> infos = new ArrayList<MBeanInfo>();
+        StringBuilder versions = new StringBuilder();
+        for (ObjectName on : matches) {
+          long start = System.nanoTime();
+          try {
+            infos.add(connection.getMBeanInfo(on));
+          } catch (Exception e) {
+            throw new IOException(e);
+          }
+          recordTiming("info", section, null, start);
+          versions.append(getVersion(infos.get(infos.size() - 1)));
+        }
+        String version = infos.size() == 1 ? versions.toString() :
+          hash(versions);
+        cached = cache.get(key, Long.MAX_VALUE);
+        if (cached != null && cached.startsWith(version + "\t")) {
+          // schema is unchanged, keep the members for another lifetime
+          cache.put(key, cached);
+        } else {
+          if (verbose) System.out.println("Discovering members -> " + key);
+          for (MBeanInfo info : infos) {
+            addAttributes(section, info);
+            addOperations(section, info);
+          }
+          StringBuilder sb = new StringBuilder(version);
+          for (MemberDetails details : section.getMembers())
+            sb.append("\t").append(details);
+          cache.put(key, sb.toString());
+          return;
+        }
+      }
+      if (verbose) System.out.println("Using cached members -> " + key);
+      String[] parts = cached.split("\t");
+      for (int n = 1; n < parts.length; n++) parseLine(section, parts[n]);
+      section.setMembersKey(key);
+    } finally {
+      closeConnection(section);
+    }
+  }
+
+  /**
+   * Returns the key for the member cache of a section.
+   *
+   * @param section  The section.
+   * @param names  The object names matched by the section.
+   * @return The key made of URL and the sorted object names.
+   */
+  private String getMembersCacheKey(Section section,
+      Collection<ObjectName> names) {
+    Set<String> sorted = new TreeSet<String>();
+    for (ObjectName on : names) sorted.add(on.getCanonicalName());
+    StringBuilder sb = new StringBuilder(getConnectionDetails(section).getURL());
+    for (String name : sorted) sb.append("|").append(name);
+    return sb.toString();
+  }
+
+  /**
+   * Computes a version key for the schema of an MBean, covering all details
+   * that are used to create the member list.
+   *
+   * @param info  The MBean info.
+   * @return The version as a hex string.
+   */
+  private String getVersion(MBeanInfo info) {
+    StringBuilder sb = new StringBuilder(String.valueOf(info.getClassName()));
+    for (MBeanAttributeInfo mbi : info.getAttributes())
+      sb.append("|").append(mbi.getName()).append(":").append(mbi.getType());
+    for (MBeanOperationInfo mbi : info.getOperations())
+      sb.append("|*").append(mbi.getName()).append(":").
+        append(mbi.getReturnType());
+    return hash(sb);
+  }
+
+  /**
+   * Computes a 64-bit FNV-1a hash of the given text.
+   *
+   * @param text  The text to hash.
+   * @return The hash as a hex string.
+   */
+  private static String hash(CharSequence text) {
+    long hash = 0xcbf29ce484222325L;
+    for (int n = 0; n < text.length(); n++) {
+      hash ^= text.charAt(n);
+      hash *= 0x100000001b3L;
+    }
+    return Long.toHexString(hash);
+  }
+
+  /**
+   * Writes the properties file out.
+   *
+   * @throws FileNotFoundException When writing the properties fails.
+   */
+  private void writeProperties() throws FileNotFoundException {
+    if (verbose) System.out.println("Writing configuration...");
+    if (params.containsKey("-f") && !params.containsKey("-x")) {
+      PrintWriter pw = new PrintWriter(new FileOutputStream(
+        new File(params.get("-f"))));
+      for (Section section : sections)
+        pw.println(section);
+      pw.close();
+    } else {
+      // the console may be shared with other requests, so keep it open
+      for (Section section : sections)
+        out.println(section);
+      out.flush();
+    }
+  }
+
+  /**
+   * Queries the values for specific attributes and operations.
+   *
+   * @throws IOException When getting the values fails.
+   */
+  void queryValues() throws IOException {
+    if (verbose) System.out.println("Querying values...");
+    List<Section> querySections = getQuerySections();
+    int threads = params.get("-P") != null ? Integer.parseInt(params.get("-P")) : 1;
+    if (isQueryParallel(querySections, threads)) {
+      IOException error = queryParallel(querySections, threads);
+      // without parallel hosts, a failing one fails the query as usual
+      if (error != null && threads <= 1) throw error;
+    } else {
+      // iterate over all selected sections
+      for (Section section : querySections) querySection(section);
+    }
+  }
+
+  /**
+   * Returns the sections selected with <code>-o</code>, or all of them.
+   *
+   * @return The sections to query.
+   * @throws IOException When no section matches.
+   */
+  private List<Section> getQuerySections() throws IOException {
+    List<Section> querySections = new LinkedList<Section>();
+    if (params.get("-o") != null) {
+      // a section with a host list selects all its instances
+      for (Section section : sections)
+        if (params.get("-o").equals(section.getTemplate()))
+          querySections.add(section);
+      Section section = querySections.size() == 0 ?
+        getSection(params.get("-o")) : null;
+      if (section != null) querySections.add(section);
+      else if (querySections.size() == 0)
+        throw new IOException("No matching section found");
+    } else {
+      querySections.addAll(sections);
+    }
+    return querySections;
+  }
+
+  /**
+   * Samples the selected sections continuously, each at its own interval,
+   * and prints one timestamped line per section and sample. The schedule is
+   * fixed relative to the start, so that slow queries do not make it drift.
+   * Samples that cannot be taken in time are skipped and reported instead of
+   * being queued up. With <code>-H</code> the pending values are written to
+   * the history every minute.
+   *
+   * @throws IOException When selecting the sections fails.
+   */
+  private void sampleValues() throws IOException {
+    try {
+      sample();
+    } finally {
+      sampled.countDown();
+    }
+  }
+
+  private void sample() throws IOException {
+    if (verbose) System.out.println("Sampling values...");
+    long defaultInterval = toNanos(params.get("-I"), 10);
+    long jitter = toNanos(params.get("-J"), 0);
+    long count = params.get("-n") != null ? Long.parseLong(params.get("-n")) : 0;
+    int threads = params.get("-P") != null ? Integer.parseInt(params.get("-P")) : 1;
+    Random random = new Random();
+    long start = System.nanoTime();
+    PriorityQueue<SampleTask> queue = new PriorityQueue<SampleTask>();
+    for (Section section : getQuerySections()) {
+      long interval = section.getInterval() != null ?
+        toNanos(section.getInterval(), 10) : defaultInterval;
+      // spread the sections to avoid querying all hosts at the same time
+      long offset = jitter > 0 ? (long) (random.nextDouble() * jitter) : 0;
+      queue.add(new SampleTask(section, start + offset, interval));
+    }
+    OutputWriter writer = createOutputWriter(true);
+    if (params.containsKey("-H")) openHistory();
+    long written = start;
+    long flushed = start;
+    List<SampleTask> due = new ArrayList<SampleTask>();
+    List<Section> dueSections = new ArrayList<Section>();
+    while (!queue.isEmpty()) {
+      long wait = queue.peek().getDeadline() - System.nanoTime();
+      try {
+        // returns early when the process is shutting down
+        if (stopSampling.await(Math.max(wait, 0), TimeUnit.NANOSECONDS)) break;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      // collect everything that is due now
+      due.clear();
+      dueSections.clear();
+      long now = System.nanoTime();
+      while (!queue.isEmpty() && queue.peek().getDeadline() <= now) {
+        SampleTask task = queue.poll();
+        task.getSection().clearValues();
+        due.add(task);
+        dueSections.add(task.getSection());
+      }
+      long time = System.currentTimeMillis();
+      if (isQueryParallel(dueSections, threads)) {
+        queryParallel(dueSections, threads);
+      } else {
+        for (Section section : dueSections) {
+          try {
+            querySection(section);
+          } catch (IOException e) {
+            section.setFailed(true);
+            System.err.println("WARNING: Sample failed for section -> " +
+              section.getName() + ", " + e);
+          }
+        }
+      }
+      for (SampleTask task : due) {
+        writer.write(task.getSection(), time);
+        recordHistory(task.getSection(), time);
+        // schedule the next sample, skipping those that were missed
+        int missed = task.advance(System.nanoTime());
+        if (missed > 0)
+          System.err.println("WARNING: Missed " + missed + " sample(s) for " +
+            "section -> " + task.getSection().getName());
+        if (count <= 0 || task.getSamples() < count) queue.add(task);
+      }
+      writer.finish();
+      // keep the timings file current for long runs, the console only gets
+      // them at the end
+      if (params.get("-T") != null &&
+          System.nanoTime() - written >= defaultInterval) {
+        writeTimings();
+        written = System.nanoTime();
+      }
+      if (history != null && System.nanoTime() - flushed >= FLUSH_INTERVAL) {
+        flushHistory();
+        flushed = System.nanoTime();
+      }
+    }
+    closeHistory();
+  }
+
+  /**
+   * Opens the history store below the state directory, and a store for each
+   * rollup tier given with <code>-R</code> as a comma separated list of
+   * <code>&lt;window&gt;[:&lt;retention&gt;]</code>. The window
+   * <code>raw</code> sets the retention of the values themselves. When the
+   * process exits, sampling is stopped first and the stores are closed after
+   * that, so that the pending blocks are not lost.
+   *
+   * @throws IOException When no state directory is given or a tier is
+   *   invalid.
+   */
+  private void openHistory() throws IOException {
+    if (params.get("-S") == null)
+      throw new IOException("Recording the history needs a state directory, " +
+        "see -S");
+    File dir = new File(params.get("-S"), "history");
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Cannot create history directory -> " + dir);
+    if (verbose) System.out.println("History -> " + dir);
+    long retention = 0;
+    String tiers = params.get("-R");
+    if (tiers != null) {
+      for (String tier : tiers.split(",")) {
+        String[] parts = tier.trim().split(":", 2);
+        long keep = parts.length > 1 ? parseDuration(parts[1]) : 0;
+        if (parts[0].equals("raw")) {
+          retention = keep;
+          continue;
+        }
+        long window = parseDuration(parts[0]);
+        if (window < 1000)
+          throw new IOException("Invalid rollup window -> " + parts[0]);
+        File tierDir = new File(dir, formatDuration(window));
+        if (verbose) System.out.println("Rollup -> " + tierDir +
+          ", retention -> " + (keep > 0 ? formatDuration(keep) : "none"));
+        rollups.add(new HistoryStore.Rollup(tierDir, window, keep));
+      }
+    }
+    history = new HistoryStore(dir, HistoryStore.MAX_SPAN, retention);
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        stopSampling.countDown();
+        try {
+          // do not hold up the exit for a hanging query
+          if (!sampled.await(10, TimeUnit.SECONDS))
+            System.err.println("WARNING: Sampling did not stop in time");
+          closeHistory();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (IOException e) {
+          System.err.println("WARNING: Could not close history -> " + e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Writes the pending values of the history store, also those that do not
+   * fill a block yet.
+   *
+   * @throws IOException When writing fails.
+   */
+  private synchronized void flushHistory() throws IOException {
+    if (history != null) history.flush();
+  }
+
+  /**
+   * Closes the history store and the rollup tiers, if open.
+   *
+   * @throws IOException When writing the pending values fails.
+   */
+  private synchronized void closeHistory() throws IOException {
+    if (history == null) return;
+    try {
+      for (HistoryStore.Rollup rollup : rollups) rollup.close();
+    } finally {
+      rollups.clear();
+      history.close();
+      history = null;
+    }
+  }
+
+  /**
+   * Adds the numeric and boolean values of a section to the history. Each
+   * series is keyed by the host, section, object and member name.
+   *
+   * @param section  The section holding the values.
+   * @param time  The time the values were taken.
+   * @throws IOException When writing to the history fails.
+   */
+  private synchronized void recordHistory(Section section, long time)
+  throws IOException {
+    // closed by the shutdown hook already
+    if (history == null) return;
+    String prefix = null;
+    for (MemberDetails details : section.getMembers()) {
+      Object value = section.getValue(details);
+      double d;
+      if (value instanceof Number) d = ((Number) value).doubleValue();
+      else if (value instanceof Boolean) d = ((Boolean) value) ? 1 : 0;
+      else continue;
+      if (prefix == null) {
+        ObjectName on = getResolvedName(section);
+        prefix = getHostName(section) + '\t' + section.getName() + '\t' +
+          (on != null ? on.getCanonicalName() : "") + '\t';
+      }
+      String key = prefix + details.getName();
+      history.append(key, time, d);
+      for (HistoryStore.Rollup rollup : rollups) rollup.add(key, time, d);
+    }
+  }
+
+  /**
+   * Prints the recorded history of a time range, using the output format
+   * given with <code>-O</code>. The range is set with <code>-F</code> and
+   * <code>-U</code> and defaults to the last hour. The series are selected
+   * by section name with <code>-o</code> and by member with <code>-q</code>.
+   * The values are read from the coarsest rollup tier whose window is not
+   * larger than the resolution given with <code>-r</code>, which defaults to
+   * a 1440th of the range. Rolled up values are printed with the statistic
+   * appended to the member name, e.g. <code>CapacityUsed.max</code>.
+   *
+   * @throws IOException When reading the history fails.
+   */
+  private void readHistory() throws IOException {
+    if (params.get("-S") == null)
+      throw new IOException("Reading the history needs a state directory, " +
+        "see -S");
+    File dir = new File(params.get("-S"), "history");
+    long now = System.currentTimeMillis();
+    long until = parseTime(params.get("-U"), now, now);
+    long from = parseTime(params.get("-F"), until - 3600 * 1000L, now);
+    if (verbose) System.out.println("Range -> " + new Date(from) + " - " +
+      new Date(until));
+    long resolution = params.get("-r") != null ?
+      parseDuration(params.get("-r")) : (until - from) / 1440;
+    long window = 0;
+    File[] tiers = dir.listFiles();
+    if (tiers != null) {
+      for (File tier : tiers) {
+        if (!tier.isDirectory() || !tier.getName().matches("\\d+[smhd]"))
+          continue;
+        long w = parseDuration(tier.getName());
+        if (w <= resolution && w > window) window = w;
+      }
+    }
+    if (window > 0) {
+      dir = new File(dir, formatDuration(window));
+      if (verbose) System.out.println("Tier -> " + dir.getName());
+    }
+    if (HistoryStore.getOldest(dir) > from)
+      System.err.println("WARNING: History does not cover the start of the " +
+        "range");
+    final boolean rolled = window > 0;
+    final String name = params.get("-o");
+    final String member = params.get("-q");
+    final OutputWriter writer = createOutputWriter(true);
+    HistoryStore.read(dir, from, until, new HistoryStore.Visitor() {
+      private String lastKey = null;
+      private String[] fields = null;
+
+      @Override
+      public boolean accept(String key) {
+        String[] parts = key.split("\t", 4);
+        if (parts.length != 4) return false;
+        // host instances of a section are named "<section>@<host>"
+        if (name != null && !parts[1].equals(name) &&
+            !parts[1].startsWith(name + "@")) return false;
+        if (member == null) return true;
+        return rolled ? parts[3].startsWith(member + "\t") :
+          parts[3].equals(member);
+      }
+
+      @Override
+      public void point(String key, long time, double value)
+      throws IOException {
+        if (!key.equals(lastKey)) {
+          lastKey = key;
+          fields = key.split("\t", 4);
+          if (rolled) fields[3] = fields[3].replace('\t', '.');
+        }
+        writer.writePoint(time, fields[0], fields[1], fields[2], fields[3],
+          value);
+      }
+    });
+    writer.finish();
+  }
+
+  /**
+   * Parses a point in time, either as milliseconds since the epoch, as an
+   * age like "30m", "12h" or "7d", or as an ISO date and time in UTC.
+   *
+   * @param value  The value to parse, may be <code>null</code>.
+   * @param def  The default if no value is given.
+   * @param now  The current time, ages are relative to it.
+   * @return The time in milliseconds.
+   * @throws IOException When the value cannot be parsed.
+   */
+  static long parseTime(String value, long def, long now) throws IOException {
+    if (value == null) return def;
+    if (value.matches("\\d+")) return Long.parseLong(value);
+    if (value.matches("\\d+[smhd]")) return now - parseDuration(value);
+    String[] patterns = { "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd'T'HH:mm",
+      "yyyy-MM-dd" };
+    for (String pattern : patterns) {
+      SimpleDateFormat format = new SimpleDateFormat(pattern);
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      format.setLenient(false);
+      ParsePosition pos = new ParsePosition(0);
+      Date date = format.parse(value, pos);
+      if (date != null && pos.getIndex() == value.length())
+        return date.getTime();
+    }
+    throw new IOException("Invalid time -> " + value);
+  }
+
+  /**
+   * Parses a duration like "90s", "10m", "12h" or "7d".
+   *
+   * @param value  The value to parse.
+   * @return The duration in milliseconds.
+   * @throws IOException When the value cannot be parsed.
+   */
+  static long parseDuration(String value) throws IOException {
+    if (!value.matches("\\d+[smhd]"))
+      throw new IOException("Invalid duration -> " + value);
+    long n = Long.parseLong(value.substring(0, value.length() - 1));
+    switch (value.charAt(value.length() - 1)) {
+      case 's': return n * 1000L;
+      case 'm': return n * 60 * 1000L;
+      case 'h': return n * 3600 * 1000L;
+      default: return n * HistoryStore.DAY;
+    }
+  }
+
+  /**
+   * Formats a duration in the largest unit that divides it, the inverse of
+   * {@link #parseDuration(String)} for whole seconds.
+   *
+   * @param millis  The duration in milliseconds.
+   * @return The formatted duration.
+   */
+  static String formatDuration(long millis) {
+    long seconds = millis / 1000;
+    if (seconds % 86400 == 0) return seconds / 86400 + "d";
+    if (seconds % 3600 == 0) return seconds / 3600 + "h";
+    if (seconds % 60 == 0) return seconds / 60 + "m";
+    return seconds + "s";
+  }
+
+  /**
+   * Subscribes to the notifications of the objects matched by the selected
+   * sections, and prints every notification as it arrives, using the output
+   * format given with <code>-O</code>. The JMX client threads hand the
+   * notifications to the printing thread through a bounded queue, those that
+   * do not fit are dropped and reported on the console, just like those the
+   * connector lost. With <code>-n</code> the subscription ends after the
+   * given number of events.
+   *
+   * @throws IOException When connecting or subscribing fails.
+   */
+  private void subscribeEvents() throws IOException {
+    if (verbose) System.out.println("Subscribing to notifications...");
+    long count = params.get("-n") != null ? Long.parseLong(params.get("-n")) : 0;
+    int capacity = params.get("-B") != null ?
+      Integer.parseInt(params.get("-B")) : 10000;
+    final BlockingQueue<SubscribeEvent> queue =
+      new ArrayBlockingQueue<SubscribeEvent>(capacity);
+    final AtomicLong dropped = new AtomicLong();
+    final AtomicLong lost = new AtomicLong();
+    NotificationListener listener = new NotificationListener() {
+      @Override
+      public void handleNotification(Notification notification,
+          Object handback) {
+        // never block the JMX client thread, drop instead
+        if (!queue.offer(new SubscribeEvent((Subscription) handback,
+            notification, System.currentTimeMillis())))
+          dropped.incrementAndGet();
+      }
+    };
+    List<Subscription> subscriptions = new ArrayList<Subscription>();
+    try {
+      for (Section section : getQuerySections()) {
+        MBeanServerConnection connection = openConnection(section);
+        for (ObjectName on : findMatches(section)) {
+          Subscription subscription =
+            new Subscription(section, on, connection);
+          long start = System.nanoTime();
+          try {
+            if (!connection.isInstanceOf(on,
+                NotificationBroadcaster.class.getName())) {
+              if (verbose) System.out.println("Object does not emit " +
+                "notifications -> " + on);
+              continue;
+            }
+            connection.addNotificationListener(on, listener, null,
+              subscription);
+          } catch (InstanceNotFoundException e) {
+            System.err.println("WARNING: Object vanished -> " + on);
+            continue;
+          } finally {
+            recordTiming("subscribe", section, null, start);
+          }
+          if (verbose) System.out.println("Subscribed -> " + on);
+          subscriptions.add(subscription);
+        }
+      }
+      if (subscriptions.size() == 0)
+        throw new IOException("No object emitting notifications found");
+      NotificationListener connectionListener = new NotificationListener() {
+        @Override
+        public void handleNotification(Notification notification,
+            Object handback) {
+          String type = notification.getType();
+          if (type.equals(JMXConnectionNotification.NOTIFS_LOST) &&
+              notification.getUserData() instanceof Long)
+            lost.addAndGet((Long) notification.getUserData());
+          else if (type.equals(JMXConnectionNotification.FAILED))
+            System.err.println("WARNING: Connection failed -> " +
+              ((JMXConnectionNotification) notification).getConnectionId());
+        }
+      };
+      for (JMXConnector connector : connectors.values())
+        connector.addConnectionNotificationListener(connectionListener,
+          null, null);
+      OutputWriter writer = createOutputWriter(true);
+      List<SubscribeEvent> batch = new ArrayList<SubscribeEvent>();
+      long events = 0;
+      long reportedDropped = 0;
+      long reportedLost = 0;
+      while (count <= 0 || events < count) {
+        SubscribeEvent event;
+        try {
+          event = queue.poll(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        if (event != null) {
+          batch.add(event);
+          queue.drainTo(batch);
+          for (SubscribeEvent e : batch) {
+            if (count > 0 && events >= count) break;
+            Section section = e.getSubscription().getSection();
+            writer.writeEvent(e.getTime(), getHostName(section),
+              section.getName(), e.getSubscription().getName(),
+              getEventValues(e.getNotification()));
+            events++;
+          }
+          batch.clear();
+          writer.finish();
+        }
+        long d = dropped.get();
+        if (d > reportedDropped) {
+          System.err.println("WARNING: Dropped " + (d - reportedDropped) +
+            " notification(s), the buffer is full");
+          reportedDropped = d;
+        }
+        long l = lost.get();
+        if (l > reportedLost) {
+          System.err.println("WARNING: Lost " + (l - reportedLost) +
+            " notification(s) in the connector");
+          reportedLost = l;
+        }
+      }
+      if (verbose) System.out.println("Events -> " + events);
+    } finally {
+      for (Subscription subscription : subscriptions) {
+        try {
+          subscription.getConnection().removeNotificationListener(
+            subscription.getName(), listener, null, subscription);
+        } catch (Exception e) {
+          // ignore, the connection is closed next anyways
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the values of a notification. All notifications have their type
+   * and sequence number, and the message if there is one. The details of
+   * garbage collections, attribute changes and MBean registrations are added
+   * as separate values, as are simple user data and the simple items of
+   * composite user data.
+   *
+   * @param notification  The notification.
+   * @return The values by name.
+   */
+  static Map<String, Object> getEventValues(Notification notification) {
+    Map<String, Object> values = new LinkedHashMap<String, Object>();
+    values.put("type", notification.getType());
+    values.put("sequence", notification.getSequenceNumber());
+    Object data = notification.getUserData();
+    if (notification.getType().equals(
+        GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION) &&
+        data instanceof CompositeData) {
+      GarbageCollectionNotificationInfo gc =
+        GarbageCollectionNotificationInfo.from((CompositeData) data);
+      GcInfo info = gc.getGcInfo();
+      values.put("gcName", gc.getGcName());
+      values.put("gcAction", gc.getGcAction());
+      values.put("gcCause", gc.getGcCause());
+      values.put("id", info.getId());
+      values.put("startTime", info.getStartTime());
+      values.put("endTime", info.getEndTime());
+      values.put("duration", info.getDuration());
+      values.put("usedBefore", getUsed(info.getMemoryUsageBeforeGc()));
+      values.put("usedAfter", getUsed(info.getMemoryUsageAfterGc()));
+      return values;
+    }
+    String message = notification.getMessage();
+    if (message != null && message.length() > 0)
+      values.put("message", message);
+    if (notification instanceof AttributeChangeNotification) {
+      AttributeChangeNotification change =
+        (AttributeChangeNotification) notification;
+      values.put("attribute", change.getAttributeName());
+      values.put("attributeType", change.getAttributeType());
+      values.put("oldValue", toSimpleValue(change.getOldValue()));
+      values.put("newValue", toSimpleValue(change.getNewValue()));
+    } else if (notification instanceof MBeanServerNotification) {
+      values.put("mbean", ((MBeanServerNotification) notification).
+        getMBeanName().getCanonicalName());
+    } else if (data instanceof CompositeData) {
+      CompositeData cd = (CompositeData) data;
+      for (String key : cd.getCompositeType().keySet()) {
+        Object value = cd.get(key);
+        if (value instanceof Number || value instanceof Boolean ||
+            value instanceof String)
+          values.put("userData." + key, value);
+      }
+    } else if (data instanceof Number || data instanceof Boolean ||
+        data instanceof String) {
+      values.put("userData", data);
+    }
+    return values;
+  }
+
+  private static long getUsed(Map<String, MemoryUsage> pools) {
+    long used = 0;
+    for (MemoryUsage usage : pools.values()) used += usage.getUsed();
+    return used;
+  }
+
+  private static Object toSimpleValue(Object value) {
+    if (value == null || value instanceof Number || value instanceof Boolean)
+      return value;
+    if (value.getClass().isArray()) {
+      StringBuilder sb = new StringBuilder("[");
+      for (int n = 0; n < Array.getLength(value); n++) {
+        if (n > 0) sb.append(", ");
+        sb.append(Array.get(value, n));
+      }
+      return sb.append(']').toString();
+    }
+    return String.valueOf(value);
+  }
+
+  /**
+   * An object subscribed to for a section, used as the handback of its
+   * notifications.
+   */
+  class Subscription {
+    private final Section section;
+    private final ObjectName name;
+    private final MBeanServerConnection connection;
+
+    public Subscription(Section section, ObjectName name,
+        MBeanServerConnection connection) {
+      this.section = section;
+      this.name = name;
+      this.connection = connection;
+    }
+
+    public Section getSection() {
+      return section;
+    }
+
+    public ObjectName getName() {
+      return name;
+    }
+
+    public MBeanServerConnection getConnection() {
+      return connection;
+    }
+  }
+
+  /**
+   * A notification waiting to be printed.
+   */
+  class SubscribeEvent {
+    private final Subscription subscription;
+    private final Notification notification;
+    private final long received;
+
+    public SubscribeEvent(Subscription subscription, Notification notification,
+        long received) {
+      this.subscription = subscription;
+      this.notification = notification;
+      this.received = received;
+    }
+
+    public Subscription getSubscription() {
+      return subscription;
+    }
+
+    public Notification getNotification() {
+      return notification;
+    }
+
+    /**
+     * Returns the time the notification was sent, or received if the sender
+     * did not set it.
+     *
+     * @return The time in milliseconds.
+     */
+    public long getTime() {
+      long time = notification.getTimeStamp();
+      return time > 0 ? time : received;
+    }
+  }
+
+  /**
+   * Serves the values of the selected sections over HTTP, in the Prometheus
+   * text or OpenMetrics format. The values are collected when scraped, or
+   * taken from the previous scrape if that is recent enough. The server
+   * listens on the loopback interface, unless <code>-s</code> gives an
+   * address with the port.
+   *
+   * @throws IOException When starting the HTTP server fails.
+   */
+  private void exposeValues() throws IOException {
+    final List<Section> exposeSections = getQuerySections();
+    final long maxAge = toNanos(params.get("-M"), 0);
+    final int threads = params.get("-P") != null ?
+      Integer.parseInt(params.get("-P")) : 1;
+    String bind = params.get("-s");
+    int colon = bind != null ? bind.lastIndexOf(':') : -1;
+    int port = bind != null ? Integer.parseInt(bind.substring(colon + 1)) : 9404;
+    InetSocketAddress address = colon > 0 ?
+      new InetSocketAddress(bind.substring(0, colon), port) :
+      new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    if (address.isUnresolved())
+      throw new IOException("Unknown address -> " + bind);
+    HttpServer server = HttpServer.create(address, 0);
+    server.createContext("/metrics", new HttpHandler() {
+      private long collected = 0;
+
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        synchronized (this) {
+          long now = System.nanoTime();
+          if (collected == 0 || now - collected > maxAge) {
+            collectValues(exposeSections, threads);
+            collected = System.nanoTime();
+          }
+          String accept = exchange.getRequestHeaders().getFirst("Accept");
+          boolean openMetrics = accept != null &&
+            accept.contains("application/openmetrics-text");
+          exchange.getResponseHeaders().set("Content-Type", openMetrics ?
+            "application/openmetrics-text; version=1.0.0; charset=utf-8" :
+            "text/plain; version=0.0.4; charset=utf-8");
+          exchange.sendResponseHeaders(200, 0);
+          Writer writer = new BufferedWriter(new OutputStreamWriter(
+            exchange.getResponseBody(), "UTF8"));
+          try {
+            writeMetrics(writer, exposeSections, openMetrics);
+          } catch (RuntimeException e) {
+            System.err.println("WARNING: Could not write metrics -> " + e);
+            throw e;
+          } finally {
+            writer.close();
+            exchange.close();
+          }
+        }
+      }
+    });
+    server.start();
+    if (verbose) System.out.println("Serving metrics on -> " +
+      server.getAddress());
+    try {
+      while (true) Thread.sleep(Long.MAX_VALUE);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /**
+   * Collects the values of the given sections. Failing sections are marked
+   * and reported, but do not stop the others.
+   *
+   * @param collectSections  The sections to query.
+   * @param threads  The maximum number of hosts to query in parallel.
+   */
+  private void collectValues(List<Section> collectSections, int threads) {
+    for (Section section : collectSections) section.clearValues();
+    if (isQueryParallel(collectSections, threads)) {
+      queryParallel(collectSections, threads);
+    } else {
+      for (Section section : collectSections) {
+        try {
+          querySection(section);
+        } catch (IOException e) {
+          section.setFailed(true);
+          System.err.println("WARNING: Query failed for section -> " +
+            section.getName() + ", " + e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the numeric values of the sections as metrics. Every member is a
+   * gauge named after it, labeled with the section, the host and the key
+   * properties of the object name. All values of one metric are written
+   * together, as required by the format. Members named <code>up</code> are
+   * skipped, since <code>jmx_up</code> holds the state of the sections.
+   *
+   * @param writer  The writer to write to.
+   * @param metricSections  The sections to write.
+   * @param openMetrics  <code>true</code> for OpenMetrics, otherwise the
+   *   Prometheus text format is used.
+   * @throws IOException When writing fails.
+   */
+  private void writeMetrics(Writer writer, List<Section> metricSections,
+      boolean openMetrics) throws IOException {
+    // group the members by metric name, keeping the order of first use
+    Map<String, List<Object[]>> metrics =
+      new LinkedHashMap<String, List<Object[]>>();
+    for (Section section : metricSections) {
+      for (MemberDetails details : section.getMembers()) {
+        String metric = "jmx_" + toMetricName(details.getName());
+        if (metric.equals("jmx_up")) {
+          // reserved for the state of the sections, written below
+          if (!upSkipped) System.err.println("WARNING: Skipping member " +
+            "with reserved metric name -> " + section.getName() + "/" +
+            details.getName());
+          upSkipped = true;
+          continue;
+        }
+        List<Object[]> list = metrics.get(metric);
+        if (list == null) {
+          list = new ArrayList<Object[]>();
+          metrics.put(metric, list);
+        }
+        list.add(new Object[] { section, details });
+      }
+    }
+    char[] buffer = new char[20];
+    for (Map.Entry<String, List<Object[]>> metric : metrics.entrySet()) {
+      boolean typed = false;
+      for (Object[] member : metric.getValue()) {
+        Section section = (Section) member[0];
+        Object value = section.getValue((MemberDetails) member[1]);
+        if (value instanceof Boolean)
+          value = ((Boolean) value).booleanValue() ? 1 : 0;
+        if (!(value instanceof Number)) continue;
+        if (!typed) {
+          writer.write("# TYPE ");
+          writer.write(metric.getKey());
+          writer.write(" gauge\n");
+          typed = true;
+        }
+        writer.write(metric.getKey());
+        writeLabels(writer, section);
+        writer.write(' ');
+        writeNumber(writer, (Number) value, buffer);
+        writer.write('\n');
+      }
+    }
+    writer.write("# TYPE jmx_up gauge\n");
+    for (Section section : metricSections) {
+      writer.write("jmx_up");
+      writeLabels(writer, section);
+      writer.write(section.isFailed() ? " 0\n" : " 1\n");
+    }
+    writeTimingMetrics(writer);
+    if (openMetrics) writer.write("# EOF\n");
+  }
+
+  /**
+   * Writes the timings as a summary metric in seconds, labeled with the
+   * phase, host, section and member.
+   *
+   * @param writer  The writer to write to.
+   * @throws IOException When writing fails.
+   */
+  private void writeTimingMetrics(Writer writer) throws IOException {
+    List<Map.Entry<String, Histogram>> sorted = timings.getSorted();
+    if (sorted.size() == 0) return;
+    writer.write("# TYPE jmxtoolkit_phase_seconds summary\n");
+    double[] quantiles = { 0.5, 0.9, 0.99 };
+    for (Map.Entry<String, Histogram> entry : sorted) {
+      String[] key = entry.getKey().split("\t", -1);
+      StringWriter sw = new StringWriter();
+      sw.write("phase=\"" + key[0] + "\",host=\"");
+      writeLabelValue(sw, key[1]);
+      sw.write("\",section=\"");
+      writeLabelValue(sw, key[2]);
+      if (key[3].length() > 0) {
+        sw.write("\",member=\"");
+        writeLabelValue(sw, key[3]);
+      }
+      sw.write('"');
+      String labels = sw.toString();
+      Histogram histogram = entry.getValue();
+      for (double quantile : quantiles) {
+        writer.write("jmxtoolkit_phase_seconds{");
+        writer.write(labels);
+        writer.write(",quantile=\"" + quantile + "\"} ");
+        writer.write(Double.toString(histogram.getPercentile(quantile) / 1e6));
+        writer.write('\n');
+      }
+      writer.write("jmxtoolkit_phase_seconds_sum{");
+      writer.write(labels);
+      writer.write("} ");
+      writer.write(Double.toString(histogram.getSum() / 1e6));
+      writer.write("\njmxtoolkit_phase_seconds_count{");
+      writer.write(labels);
+      writer.write("} ");
+      writer.write(Long.toString(histogram.getCount()));
+      writer.write('\n');
+    }
+  }
+
+  /**
+   * Writes the labels of a section. Key properties named like the fixed
+   * labels are prefixed with <code>key_</code>, e.g. <code>key_host</code>.
+   *
+   * @param writer  The writer to write to.
+   * @param section  The section.
+   * @throws IOException When writing fails.
+   */
+  private void writeLabels(Writer writer, Section section) throws IOException {
+    writer.write("{section=\"");
+    writeLabelValue(writer, section.getName());
+    writer.write("\",host=\"");
+    writeLabelValue(writer, getHostName(section));
+    writer.write('"');
+    ObjectName on = getResolvedName(section);
+    if (on != null) {
+      for (Map.Entry<String, String> prop : getKeyProperties(on).entrySet()) {
+        String label = toMetricName(prop.getKey());
+        if (label.equals("section") || label.equals("host"))
+          label = "key_" + label;
+        writer.write(',');
+        writer.write(label);
+        writer.write("=\"");
+        writeLabelValue(writer, prop.getValue());
+        writer.write('"');
+      }
+    }
+    writer.write('}');
+  }
+
+  /**
+   * Writes a label value, escaping backslashes, quotes and line feeds.
+   *
+   * @param writer  The writer to write to.
+   * @param value  The value to write.
+   * @throws IOException When writing fails.
+   */
+  private void writeLabelValue(Writer writer, String value) throws IOException {
+    for (int n = 0; n < value.length(); n++) {
+      char c = value.charAt(n);
+      if (c == '\\' || c == '"') writer.write('\\');
+      if (c == '\n') writer.write("\\n");
+      else writer.write(c);
+    }
+  }
+
+  /**
+   * Writes a number without creating intermediate strings for integral
+   * values.
+   *
+   * @param writer  The writer to write to.
+   * @param value  The number to write.
+   * @param buffer  A scratch buffer of at least 20 characters.
+   * @throws IOException When writing fails.
+   */
+  private void writeNumber(Writer writer, Number value, char[] buffer)
+  throws IOException {
+    if (value instanceof Double || value instanceof Float) {
+      double d = value.doubleValue();
+      if (Double.isNaN(d)) writer.write("NaN");
+      else if (Double.isInfinite(d)) writer.write(d > 0 ? "+Inf" : "-Inf");
+      else writer.write(Double.toString(d));
+      return;
+    }
+    writeLong(writer, value.longValue(), buffer);
+  }
+
+  /**
+   * Writes a long without creating an intermediate string.
+   *
+   * @param writer  The writer to write to.
+   * @param l  The value to write.
+   * @param buffer  A scratch buffer of at least 20 characters.
+   * @throws IOException When writing fails.
+   */
+  private static void writeLong(Writer writer, long l, char[] buffer)
+  throws IOException {
+    if (l == Long.MIN_VALUE) {
+      writer.write(Long.toString(l));
+      return;
+    }
+    boolean negative = l < 0;
+    if (negative) l = -l;
+    int pos = buffer.length;
+    do {
+      buffer[--pos] = (char) ('0' + l % 10);
+      l /= 10;
+    } while (l != 0);
+    if (negative) buffer[--pos] = '-';
+    writer.write(buffer, pos, buffer.length - pos);
+  }
+
+  /**
+   * Converts a name into a valid metric or label name.
+   *
+   * @param name  The name to convert.
+   * @return The name with all invalid characters replaced by underscores.
+   */
+  private String toMetricName(String name) {
+    StringBuilder res = new StringBuilder(name.length());
+    for (int n = 0; n < name.length(); n++) {
+      char c = name.charAt(n);
+      boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+        c == '_' || (n > 0 && c >= '0' && c <= '9');
+      res.append(valid ? c : '_');
+    }
+    return res.toString();
+  }
+
+  /**
+   * Returns the host a section connects to.
+   *
+   * @param section  The section.
+   * @return The host name, or the URL if it cannot be determined.
+   */
+  private String getHostName(Section section) {
+    if (section.getHostName() != null) return section.getHostName();
+    return getHostName(getConnectionDetails(section).getURL());
+  }
+
+  /**
+   * Returns the host of a JMX URL.
+   *
+   * @param url  The URL.
+   * @return The host name, or the URL if it cannot be determined.
+   */
+  private static String getHostName(String url) {
+    if (url == null) return "";
+    // the host is usually part of the JNDI path, e.g. /jndi/rmi://host:port/
+    Matcher m = HOST.matcher(url);
+    String host = null;
+    while (m.find()) host = m.group(1);
+    return host != null && host.length() > 0 ? host : url;
+  }
+
+  /**
+   * Converts a duration in (fractional) seconds to nanoseconds.
+   *
+   * @param seconds  The seconds, may be <code>null</code>.
+   * @param defaultSeconds  The seconds to use when none are given.
+   * @return The duration in nanoseconds.
+   */
+  private long toNanos(String seconds, double defaultSeconds) {
+    double d = seconds != null ? Double.parseDouble(seconds) : defaultSeconds;
+    return (long) (d * 1000000000L);
+  }
+
+  /**
+   * Holds the schedule of one section in sampling mode.
+   */
+  class SampleTask implements Comparable<SampleTask> {
+    private Section section = null;
+    private long deadline = 0;
+    private long interval = 0;
+    private long samples = 0;
+
+    public SampleTask(Section section, long deadline, long interval) {
+      this.section = section;
+      this.deadline = deadline;
+      this.interval = interval;
+    }
+
+    public Section getSection() {
+      return section;
+    }
+
+    public long getDeadline() {
+      return deadline;
+    }
+
+    public long getSamples() {
+      return samples;
+    }
+
+    /**
+     * Moves the deadline to the next slot of the schedule after the given
+     * time.
+     *
+     * @param now  The current time in nanoseconds.
+     * @return The number of slots that were skipped.
+     */
+    public int advance(long now) {
+      samples++;
+      deadline += interval;
+      int missed = 0;
+      while (deadline <= now) {
+        deadline += interval;
+        missed++;
+      }
+      return missed;
+    }
+
+    @Override
+    public int compareTo(SampleTask other) {
+      return deadline < other.deadline ? -1 : deadline > other.deadline ? 1 : 0;
+    }
+  }
+
+  /**
+   * Queries the values for a single section.
+   *
+   * @param section  The section to query.
+   * @throws IOException When getting the values fails.
+   */
+  private void querySection(Section section) throws IOException {
+    if (section.getMembers().size() == 0) {
+      if (getStateFile("members") != null) discoverMembers(section);
+      else retrieveMembers(section, false);
+    }
+    if (readSnapshot(section)) {
+      computeRates(section);
+      return;
+    }
+    if (!section.isConnected()) openConnection(section);
+    try {
+      findObjectName(section);
+      if (verbose) System.out.println("Querying object -> " + section.getObject());
+      try {
+        readValues(section);
+        computeRates(section);
+      } catch (IOException e) {
+        // the schema may have changed, discover the members again next time
+        if (section.getMembersKey() != null)
+          getStateFile("members").remove(section.getMembersKey());
+        throw e;
+      } catch (InstanceNotFoundException e) {
+        // the cached name is stale, find the current one and try again
+        if (verbose) System.out.println("Cached object name is stale, " +
+          "section -> " + section.getName());
+        getStateFile("objectnames").remove(getNameCacheKey(section));
+        section.setCachedName(false);
+        findObjectName(section);
+        try {
+          readValues(section);
+          computeRates(section);
+        } catch (InstanceNotFoundException e2) {
+          throw new IOException(e2);
+        }
+      }
+    } finally {
+      closeConnection(section);
+    }
+  }
+
+  /**
+   * Replaces the values of all counters of a section with their rate per
+   * second since the previous sample. Counters without a previous sample are
+   * left without a value. With <code>-S</code> the samples are kept between
+   * runs.
+   *
+   * @param section  The section with the current values.
+   * @throws IOException When reading the previous samples fails.
+   */
+  private void computeRates(Section section) throws IOException {
+    int[] slots = section.getCounterSlots();
+    if (slots == null || slots.length != section.getMembers().size()) {
+      slots = new int[section.getMembers().size()];
+      int n = 0;
+      for (MemberDetails details : section.getMembers())
+        slots[n++] = details.isCounter() ? -2 : -1;
+      section.setCounterSlots(slots);
+    }
+    StateFile state = getStateFile("counters");
+    long time = System.currentTimeMillis();
+    int n = 0;
+    for (MemberDetails details : section.getMembers()) {
+      int slot = slots[n++];
+      if (slot == -1) continue;
+      String key = state != null ? getConnectionDetails(section).getURL() +
+        "|" + section.getName() + "|" + details.getName() : null;
+      if (slot == -2) {
+        slot = counters.register();
+        slots[n - 1] = slot;
+        // restore the last sample of a previous run
+        String last = state != null ? state.get(key, getCacheLifetime()) : null;
+        if (last != null) {
+          String[] parts = last.split("\t");
+          counters.restore(slot, Long.parseLong(parts[0]),
+            Double.parseDouble(parts[1]), Long.parseLong(parts[2]));
+        }
+      }
+      Object value = section.getValue(details);
+      if (value instanceof Number) {
+        section.setValue(details, counters.update(slot, (Number) value, time));
+        if (state != null) state.put(key, counters.toString(slot));
+      } else if (value != null) {
+        if (verbose) System.out.println("Not a numeric counter -> " +
+          details.getName() + ", value -> " + value);
+        section.setValue(details, null);
+      }
+    }
+  }
+
+  /**
+   * Reads the values of the section members, or the one given with
+   * <code>-q</code>.
+   *
+   * @param section  The section to read.
+   * @throws InstanceNotFoundException When the object name was taken from the
+   *   cache and is not known to the server (anymore).
+   * @throws IOException When getting the values fails.
+   */
+  private void readValues(Section section)
+  throws InstanceNotFoundException, IOException {
+    if (getSnapshotAge() > 0 && takeSnapshot(section)) return;
+    String attr = params.get("-q");
+    if (attr != null) {
+      MemberDetails details = section.getMember(attr);
+      getMemberValue(section, details);
     } else {
-      throw new IOException("No check defined.");
+      getMemberValues(section, getReadMembers(section));
+    }
+  }
+
+  /**
+   * Returns the members of a section that are read, i.e. all of them, those
+   * with check details when checking all values, or the one given with
+   * <code>-q</code>.
+   *
+   * @param section  The section.
+   * @return The members to read.
+   */
+  private Collection<MemberDetails> getReadMembers(Section section) {
+    String attr = params.get("-q");
+    if (attr == null) {
+      if (!checkedOnly) return section.getMembers();
+      List<MemberDetails> res = new ArrayList<MemberDetails>();
+      for (MemberDetails details : section.getMembers())
+        if (details.getCheckDetails() != null) res.add(details);
+      return res;
     }
+    MemberDetails details = section.getMember(attr);
+    return details != null ? Collections.singletonList(details) :
+      Collections.<MemberDetails>emptyList();
   }
 
   /**
-   * Does the actual check of a value.
+   * Returns the maximum age of shared snapshots given with <code>-C</code>.
+   * Snapshots are only used when a state directory is set as well.
    *
-   * @param check  The check to perform.
-   * @param details  The details with the value.
-   * @return The error code.
+   * @return The age in milliseconds, or 0 when snapshots are disabled.
    */
-  private int performCheck(CheckDetails check, MemberDetails details) {
-    String val = details.getValue().toString();
-    if (verbose) System.out.println("Details -> " + details + ", value=" + val);
-    if (verbose) System.out.println("Check -> " + check);
-    if (check.hasErrorCheck()) {
-      CompareResults cr = check.checkForError(val);
-      if (cr != CompareResults.OK) {
-        if (check.getErrorMessage() != null)
-          printCheckMessage(check.getErrorMessage(), val);
-        return check.getErrorCode();
+  private long getSnapshotAge() {
+    String age = params.get("-C");
+    if (age == null || params.get("-S") == null) return 0;
+    return Long.parseLong(age) * 1000L;
+  }
+
+  /**
+   * Returns the snapshot file for the MBean of a section.
+   *
+   * @param section  The section with the resolved object name.
+   * @return The snapshot file.
+   * @throws IOException When the object name is invalid.
+   */
+  private SnapshotFile getSnapshotFile(Section section) throws IOException {
+    String key;
+    try {
+      key = getConnectionDetails(section).getURL() + "|" +
+        section.getObjectName().getCanonicalName();
+    } catch (MalformedObjectNameException e) {
+      throw new IOException(e);
+    }
+    File file = new File(new File(params.get("-S"), "snapshots"),
+      hash(key) + ".snapshot");
+    return new SnapshotFile(file, key);
+  }
+
+  /**
+   * Sets the values of a section from a recent snapshot written by this or
+   * another process, without connecting to the server. This only works when
+   * all members read are attributes and the object name is known.
+   *
+   * @param section  The section to read.
+   * @return <code>true</code> when the values were taken from a snapshot.
+   * @throws IOException When reading the name cache fails.
+   */
+  private boolean readSnapshot(Section section) throws IOException {
+    long maxAge = getSnapshotAge();
+    if (maxAge <= 0) return false;
+    String regexp = params.get("-e");
+    if (regexp == null) regexp = section.getRegexp();
+    if (regexp != null && !findCachedObjectName(section)) return false;
+    for (MemberDetails details : getReadMembers(section))
+      if (!(details instanceof AttributeDetails)) return false;
+    Map<String, Object> values = getSnapshotFile(section).read(maxAge);
+    if (values == null || !applySnapshot(section, values)) return false;
+    if (verbose) System.out.println("Using snapshot, section -> " +
+      section.getName());
+    return true;
+  }
+
+  /**
+   * Reads the attributes the section names and shares their values as a
+   * snapshot with other processes, then sets the section values from it.
+   * The snapshot is locked while reading, and another process may have
+   * refreshed it in the meantime, in which case its values are used.
+   * Attributes already in the previous snapshot are read again as well, so
+   * that sections reading different attributes of the same MBean share one
+   * snapshot instead of replacing each other's.
+   *
+   * @param section  The section to read.
+   * @return <code>true</code> when the snapshot had all values.
+   * @throws InstanceNotFoundException When the cached object name is stale.
+   * @throws IOException When talking to the server fails.
+   */
+  private boolean takeSnapshot(Section section)
+  throws InstanceNotFoundException, IOException {
+    Collection<MemberDetails> members = getReadMembers(section);
+    for (MemberDetails details : members)
+      if (!(details instanceof AttributeDetails)) return false;
+    SnapshotFile snapshot = getSnapshotFile(section);
+    snapshot.lock();
+    try {
+      Map<String, Object> values = snapshot.read(getSnapshotAge());
+      if (values != null && applySnapshot(section, values)) {
+        if (verbose) System.out.println("Using snapshot taken meanwhile, " +
+          "section -> " + section.getName());
+        return true;
+      }
+      // share all attributes the section names, not only those read now
+      Set<String> keys = new LinkedHashSet<String>();
+      for (MemberDetails details : section.getMembers())
+        if (details instanceof AttributeDetails) keys.add(details.getName());
+      if (values == null) values = snapshot.read(Long.MAX_VALUE);
+      if (values != null) keys.addAll(values.keySet());
+      Set<String> names = new LinkedHashSet<String>();
+      for (String key : keys) addAttributeName(names, key);
+      Map<String, Object> attributes = new HashMap<String, Object>();
+      long start = System.nanoTime();
+      try {
+        AttributeList list = section.getConnection().getAttributes(
+          section.getObjectName(), names.toArray(new String[names.size()]));
+        for (Attribute attribute : list.asList())
+          attributes.put(attribute.getName(), attribute.getValue());
+      } catch (MalformedObjectNameException e) {
+        throw new IOException(e);
+      } catch (ReflectionException e) {
+        if (verbose) System.out.println("Snapshot failed -> " + e);
+        return false;
+      } finally {
+        recordTiming("read", section, null, start);
+      }
+      // missing attributes are kept as null, so readers know about them
+      values = new HashMap<String, Object>();
+      for (String key : keys) {
+        try {
+          values.put(key, getPathValue(attributes, key));
+        } catch (AttributeNotFoundException e) {
+          values.put(key, null);
+        }
+      }
+      try {
+        snapshot.write(values);
+      } catch (IOException e) {
+        System.err.println("WARNING: Could not write snapshot -> " + e);
+      }
+      return applySnapshot(section, values);
+    } finally {
+      snapshot.unlock();
+    }
+  }
+
+  /**
+   * Sets the values of the members read from a snapshot. Attributes the
+   * snapshot records as missing are left without a value with
+   * <code>-l</code>, and are read from the server otherwise, so that the
+   * error is reported as usual.
+   *
+   * @param section  The section to set the values for.
+   * @param values  The snapshot values by member name.
+   * @return <code>true</code> when the snapshot had all values.
+   */
+  private boolean applySnapshot(Section section, Map<String, Object> values) {
+    Collection<MemberDetails> members = getReadMembers(section);
+    List<Object> res = new ArrayList<Object>(members.size());
+    for (MemberDetails details : members) {
+      if (!(details instanceof AttributeDetails) ||
+          !values.containsKey(details.getName())) return false;
+      Object value = values.get(details.getName());
+      if (value == null && !params.containsKey("-l")) return false;
+      res.add(value);
+    }
+    int n = 0;
+    for (MemberDetails details : members) {
+      Object value = res.get(n++);
+      if (value != null) section.setValue(details, value);
+    }
+    return true;
+  }
+
+  /**
+   * Returns if the sections are queried with {@link #queryParallel}, which
+   * is the case for many sections and threads, or when a deadline is set.
+   * With a single thread the hosts are still queried one after the other.
+   *
+   * @param querySections  The sections to query.
+   * @param threads  The maximum number of hosts queried at the same time.
+   * @return <code>true</code> when the sections are queried as tasks.
+   */
+  private boolean isQueryParallel(List<Section> querySections, int threads) {
+    return threads > 1 && querySections.size() > 1 || params.get("-t") != null;
+  }
+
+  /**
+   * Queries the given sections concurrently. The sections are grouped by the
+   * host they connect to, and each host is handled by one task on a bounded
+   * executor. When a deadline is set with <code>-t</code>, a host that takes
+   * longer is abandoned and its sections are left without values. Failing
+   * hosts are reported but do not stop the others.
+   *
+   * @param querySections  The sections to query.
+   * @param threads  The maximum number of hosts queried at the same time.
+   * @return The error of the first failing host, or <code>null</code>.
+   */
+  private IOException queryParallel(List<Section> querySections, int threads) {
+    long timeout = params.get("-t") != null ?
+      Long.parseLong(params.get("-t")) * 1000L : 0;
+    // group sections by host, keeping the original order
+    Map<String, List<Section>> hosts = new LinkedHashMap<String, List<Section>>();
+    for (Section section : querySections) {
+      String key = getConnectionDetails(section).getKey();
+      List<Section> list = hosts.get(key);
+      if (list == null) {
+        list = new ArrayList<Section>();
+        hosts.put(key, list);
+      }
+      list.add(section);
+    }
+    if (verbose) System.out.println("Querying " + hosts.size() +
+      " hosts with " + threads + " threads...");
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0,
+      TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+      createThreadFactory());
+    List<HostTask> tasks = new ArrayList<HostTask>();
+    IOException error = null;
+    for (Map.Entry<String, List<Section>> entry : hosts.entrySet()) {
+      HostTask task = new HostTask(entry.getKey(), entry.getValue());
+      task.setFuture(executor.submit(task));
+      tasks.add(task);
+    }
+    executor.shutdown();
+    for (HostTask task : tasks) {
+      try {
+        task.await(timeout);
+        task.takeResults();
+      } catch (TimeoutException e) {
+        task.abandon();
+        task.getFuture().cancel(true);
+        // the abandoned task may still block its thread, so add another one
+        executor.setMaximumPoolSize(executor.getMaximumPoolSize() + 1);
+        executor.setCorePoolSize(executor.getCorePoolSize() + 1);
+        for (Section section : task.getSections()) section.setFailed(true);
+        // the connector may hang, so close it without waiting for it
+        closeAsync(connectors.remove(task.getKey()));
+        String message = "Deadline exceeded for host -> " +
+          getConnectionDetails(task.getSections().get(0));
+        System.err.println("WARNING: " + message);
+        if (error == null) error = new IOException(message);
+      } catch (ExecutionException e) {
+        task.takeResults();
+        System.err.println("WARNING: Query failed for host -> " +
+          getConnectionDetails(task.getSections().get(0)) + ", " + e.getCause());
+        if (error == null) error = e.getCause() instanceof IOException ?
+          (IOException) e.getCause() : new IOException(e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        if (error == null) error = new InterruptedIOException();
+        break;
+      }
+    }
+    executor.shutdownNow();
+    return error;
+  }
+
+  /**
+   * Closes a connector on a daemon thread, so that a hanging connection does
+   * not block the caller.
+   *
+   * @param connector  The connector to close, may be <code>null</code>.
+   */
+  private void closeAsync(final JMXConnector connector) {
+    if (connector == null) return;
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          connector.close();
+        } catch (IOException e) {
+          // ignore, the connection is broken anyways
+        }
+      }
+    }, "jmxtoolkit-close");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Queries all sections of one host, one after the other and using the same
+   * connection. The task works on copies of the sections, their results are
+   * taken over only once the task has finished.
+   */
+  class HostTask implements Callable<Void> {
+    private String key = null;
+    private List<Section> sections = null;
+    private List<Section> copies = new ArrayList<Section>();
+    private Future<Void> future = null;
+    private volatile long started = 0;
+
+    public HostTask(String key, List<Section> sections) {
+      this.key = key;
+      this.sections = sections;
+      for (Section section : sections) copies.add(section.copy());
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public List<Section> getSections() {
+      return sections;
+    }
+
+    public Future<Void> getFuture() {
+      return future;
+    }
+
+    public void setFuture(Future<Void> future) {
+      this.future = future;
+    }
+
+    /**
+     * Copies the results of the finished task into the original sections.
+     */
+    public void takeResults() {
+      for (int n = 0; n < sections.size(); n++)
+        sections.get(n).takeResults(copies.get(n));
+    }
+
+    /**
+     * Marks the copies as abandoned, so that the task does not register any
+     * new connection, see {@link JMXToolkit#openConnection(Section)}.
+     */
+    public void abandon() {
+      for (Section copy : copies) copy.setAbandoned(true);
+    }
+
+    @Override
+    public Void call() throws Exception {
+      started = System.currentTimeMillis();
+      IOException error = null;
+      for (Section section : copies) {
+        try {
+          querySection(section);
+        } catch (IOException e) {
+          section.setFailed(true);
+          if (error == null) error = e;
+        }
       }
+      if (error != null) throw error;
+      return null;
     }
-    if (check.hasWarnCheck()) {
-      CompareResults cr = check.checkForWarn(val);
-      if (cr != CompareResults.OK) {
-        if (check.getWarnMessage() != null)
-          printCheckMessage(check.getWarnMessage(), val);
-        return check.getWarnCode();
+
+    /**
+     * Waits for the task to complete. The deadline is counted from the moment
+     * the task started running, not when it was submitted.
+     *
+     * @param timeout  The deadline in milliseconds, or zero for none.
+     * @throws TimeoutException When the deadline was exceeded.
+     * @throws ExecutionException When the task failed.
+     * @throws InterruptedException When waiting was interrupted.
+     */
+    public void await(long timeout)
+    throws TimeoutException, ExecutionException, InterruptedException {
+      if (timeout <= 0) {
+        future.get();
+        return;
+      }
+      while (true) {
+        long start = started;
+        long wait = start == 0 ? 100 : start + timeout - System.currentTimeMillis();
+        if (wait <= 0 && !future.isDone()) throw new TimeoutException();
+        try {
+          future.get(Math.max(wait, 1), TimeUnit.MILLISECONDS);
+          return;
+        } catch (TimeoutException e) {
+          // not started yet or deadline reached, check again
+        }
       }
     }
-    if (check.getOkMessage() != null)
-      printCheckMessage(check.getOkMessage(), val);
-    return check.getOkCode() != null ? check.getOkCode() : 0;
   }
 
   /**
-   * Prints a messages using a MessageFormat instance.
+   * Creates the thread factory for the parallel query. Uses virtual threads
+   * when the JVM supports them, and daemon threads otherwise.
    *
-   * @param message  The message with place-holders.
-   * @param val  The value to fill in.
+   * @return The thread factory.
    */
-  private void printCheckMessage(String message, String val) {
-    String m = null;
+  private ThreadFactory createThreadFactory() {
     try {
-      m = URLDecoder.decode(message, "UTF8");
-    } catch (UnsupportedEncodingException e) {
-      // this should never happen
-      System.err.println("An error occurred." + e);
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory) Class.forName("java.lang.Thread$Builder").
+        getMethod("factory").invoke(builder);
+    } catch (Exception e) {
+      if (debug) System.out.println("No virtual threads available -> " + e);
     }
-    MessageFormat mf = new MessageFormat(m);
-    Object[] data = { val };
-    System.out.println(mf.format(data));
+    return new ThreadFactory() {
+      private AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "query-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
   }
 
   /**
-   * Returns a named section or <code>null</code>.
+   * Gets the values of many members at once. All attributes are fetched with
+   * a single call, operations are invoked one by one. Attributes missing from
+   * the batch are retried singly, so that errors are reported as usual.
    *
-   * @param name  The name of the section to retrieve.
-   * @return The section or <code>null</code>.
+   * @param section  The section with the object name.
+   * @param members  The members to query.
+   * @throws InstanceNotFoundException When the cached object name is stale.
+   * @throws IOException When anything fails during the call.
    */
-  private Section getSection(String name) {
-    for (Section section : sections)
-      if (section.getName().equals(name) || section.matches(name))
-        return section;
+  private void getMemberValues(Section section, Collection<MemberDetails> members)
+  throws InstanceNotFoundException, IOException {
+    Set<String> names = getAttributeNames(members);
+    Map<String, Object> values = new HashMap<String, Object>();
+    if (names.size() > 0) {
+      long start = System.nanoTime();
+      try {
+        AttributeList list = section.getConnection().getAttributes(
+          section.getObjectName(),
+          names.toArray(new String[names.size()]));
+        for (Attribute attribute : list.asList())
+          values.put(attribute.getName(), attribute.getValue());
+      } catch (IOException e) {
+        throw e;
+      } catch (InstanceNotFoundException e) {
+        if (section.isCachedName()) throw e;
+        if (verbose) System.out.println("Batch read failed -> " + e);
+      } catch (Exception e) {
+        if (verbose) System.out.println("Batch read failed -> " + e);
+      } finally {
+        recordTiming("read", section, null, start);
+      }
+    }
+    for (MemberDetails details : members) {
+      Object res = null;
+      if (details instanceof AttributeDetails) try {
+        res = getPathValue(values, details.getName());
+      } catch (AttributeNotFoundException e) {
+        // the attribute exists, but the path into it does not
+        if (!params.containsKey("-l")) throw new IOException(e);
+        continue;
+      }
+      if (res != null) section.setValue(details, res);
+      else if (!values.containsKey(details.getName()))
+        getMemberValue(section, details);
+    }
+  }
+
+  /**
+   * Returns the names of the attributes to request for the given members.
+   * Paths may refer to attributes with dots in their name, so all prefixes
+   * are requested as well.
+   *
+   * @param members  The members to read.
+   * @return The attribute names.
+   */
+  private static Set<String> getAttributeNames(
+      Collection<MemberDetails> members) {
+    Set<String> names = new LinkedHashSet<String>();
+    for (MemberDetails details : members)
+      if (details instanceof AttributeDetails)
+        addAttributeName(names, details.getName());
+    return names;
+  }
+
+  private static void addAttributeName(Set<String> names, String name) {
+    names.add(name);
+    for (int dot = name.indexOf('.'); dot > 0; dot = name.indexOf('.', dot + 1))
+      names.add(name.substring(0, dot));
+  }
+
+  /**
+   * Returns the value of an attribute, or of a path into a composite or
+   * tabular attribute, e.g. <code>HeapMemoryUsage.used</code>.
+   *
+   * @param values  The attribute values by name.
+   * @param name  The attribute name or path.
+   * @return The value or <code>null</code> if there is none.
+   * @throws AttributeNotFoundException When the attribute has no such path.
+   */
+  private static Object getPathValue(Map<String, Object> values, String name)
+  throws AttributeNotFoundException {
+    if (values.containsKey(name)) return values.get(name);
+    for (int dot = name.lastIndexOf('.'); dot > 0;
+         dot = name.lastIndexOf('.', dot - 1)) {
+      String attr = name.substring(0, dot);
+      if (values.containsKey(attr))
+        return selectPath(values.get(attr), name.substring(dot + 1));
+    }
     return null;
   }
 
   /**
-   * Reads the properties file.
+   * Selects a nested value of composite or tabular data. Each step of the
+   * path uses the longest item name or table key that matches, since they
+   * may contain dots themselves. Tables with a single index column are
+   * keyed by its value, and for tables built from a map the value of the
+   * matching row is used.
    *
-   * @throws IOException When the config file is corrupt.
+   * @param value  The data to select from.
+   * @param path  The dot separated path.
+   * @return The selected value, may be <code>null</code>.
+   * @throws AttributeNotFoundException When an item of the path is unknown.
    */
-  private void readProperties() throws IOException {
-    BufferedReader in = getPropertiesReader();
-    if (in != null) {
-      Section section = null;
-      String line = in.readLine();
-      while (line != null) {
-        String tl = line.trim();
-        // check for empty lines and comments
-        if (!tl.startsWith(";") && !tl.startsWith("#") && tl.length() > 0) {
-          // check for start of a section
-          if (tl.startsWith("[")) {
-            section = new Section(tl);
-            sections.add(section);
-          } else if (section != null) {
-            parseLine(section, tl);
-          }
+  private static Object selectPath(Object value, String path)
+  throws AttributeNotFoundException {
+    while (value != null && path != null) {
+      int end = path.length();
+      Object next = NO_ITEM;
+      while (end > 0) {
+        next = selectItem(value, path.substring(0, end));
+        if (next != NO_ITEM) break;
+        end = path.lastIndexOf('.', end - 1);
+      }
+      if (next == NO_ITEM)
+        throw new AttributeNotFoundException("No such item: " + path);
+      value = next;
+      path = end < path.length() ? path.substring(end + 1) : null;
+    }
+    return value;
+  }
+
+  // returns NO_ITEM when there is no such item, items may be null
+  private static Object selectItem(Object value, String key) {
+    if (value instanceof CompositeData) {
+      CompositeData cd = (CompositeData) value;
+      return cd.containsKey(key) ? cd.get(key) : NO_ITEM;
+    }
+    if (!(value instanceof TabularData)) return NO_ITEM;
+    TabularData td = (TabularData) value;
+    List<String> index = td.getTabularType().getIndexNames();
+    if (index.size() != 1) return NO_ITEM;
+    String type = td.getTabularType().getRowType().getType(index.get(0)).
+      getClassName();
+    Object[] k;
+    try {
+      if (type.equals(String.class.getName())) k = new Object[] { key };
+      else if (type.equals(Integer.class.getName()))
+        k = new Object[] { Integer.valueOf(key) };
+      else if (type.equals(Long.class.getName()))
+        k = new Object[] { Long.valueOf(key) };
+      else return NO_ITEM;
+    } catch (NumberFormatException e) {
+      return NO_ITEM;
+    }
+    CompositeData row = td.get(k);
+    if (row == null) return NO_ITEM;
+    if (row.getCompositeType().keySet().size() == 2 &&
+        row.containsKey("key") && row.containsKey("value"))
+      return row.get("value");
+    return row;
+  }
+
+  /**
+   * Gets the actual value based on the type of the member, i.e. attribute
+   * or operation.
+   *
+   * @param section  The section with the object name.
+   * @param details  The member to query.
+   * @return The result as on {@link Object} or <code>null</code>.
+   * @throws InstanceNotFoundException When the cached object name is stale.
+   * @throws IOException When anything fails during the call.
+   */
+  private Object getMemberValue(Section section, MemberDetails details)
+  throws InstanceNotFoundException, IOException {
+    Object res = null;
+    long start = System.nanoTime();
+    try {
+      if (details instanceof AttributeDetails) {
+        res = getAttributeValue(section.getConnection(),
+          section.getObjectName(), details.getName());
+      } else if (details instanceof OperationDetails) {
+        res = section.getConnection().invoke(section.getObjectName(),
+          details.getName(),
+          new Object[]{}, new String[]{});
+      }
+    } catch (IOException e) {
+      throw e;
+    } catch (InstanceNotFoundException e) {
+      if (section.isCachedName()) throw e;
+      if (!params.containsKey("-l"))
+        throw new IOException(e);
+    } catch (Exception e) {
+      if (!params.containsKey("-l"))
+        throw new IOException(e);
+    } finally {
+      recordTiming(details instanceof OperationDetails ? "invoke" : "read",
+        section, details.getName(), start);
+    }
+    if (res != null) section.setValue(details, res);
+    return res;
+  }
+
+  /**
+   * Reads an attribute, or a path into a composite or tabular attribute.
+   *
+   * @param connection  The connection to use.
+   * @param on  The object to read from.
+   * @param name  The attribute name or path.
+   * @return The value, may be <code>null</code>.
+   * @throws Exception When reading the attribute fails.
+   */
+  private Object getAttributeValue(MBeanServerConnection connection,
+      ObjectName on, String name)
+  throws Exception {
+    try {
+      return connection.getAttribute(on, name);
+    } catch (AttributeNotFoundException e) {
+      for (int dot = name.lastIndexOf('.'); dot > 0;
+           dot = name.lastIndexOf('.', dot - 1)) {
+        Object value;
+        try {
+          value = connection.getAttribute(on, name.substring(0, dot));
+        } catch (AttributeNotFoundException e2) {
+          // try a shorter prefix
+          continue;
         }
-        line = in.readLine();
+        return selectPath(value, name.substring(dot + 1));
       }
+      throw e;
     }
-    if (debug) System.out.println("config -> " + sections);
   }
 
   /**
-   * Tries to find the properties on the local file system first and then
-   * using the classloader.
+   * Finds the matching ObjectName when a section has a true pattern.
    *
-   * @return The reader instance or <code>null</code> if not found.
-   * @throws FileNotFoundException When the properties file cannot be found.
+   * @param section  The section to find the object name for.
+   * @throws IOException When querying the names fails.
    */
-  private BufferedReader getPropertiesReader() throws FileNotFoundException {
-    InputStream in = null;
-    String fn = params.get("-f");
-    if (fn != null) {
-      File f = new File(fn);
-      if (f.exists()) {
-        in = new FileInputStream(f);
-      } else {
-        in = JMXToolkit.class.getClassLoader().getResourceAsStream(fn);
+  private void findObjectName(Section section)
+  throws IOException {
+    String regexp = params.get("-e");
+    if (regexp == null) regexp = section.getRegexp();
+    if (regexp != null) {
+      // use the name resolved by an earlier run if possible
+      if (findCachedObjectName(section)) return;
+      StateFile cache = getStateFile("objectnames");
+      String key = getNameCacheKey(section);
+      section.setCachedName(false);
+      // iterate over objects
+      List<ObjectName> matches = findMatches(section);
+      if (matches.size() > 0) {
+        section.setObjectName(matches.get(0));
+        if (cache != null) cache.put(key, matches.get(0).getCanonicalName());
+        return;
       }
-      if (in == null)
-        System.err.println("WARNING: Could not find configuration file -> " + fn);
+      throw new IOException("Could not find matching ObjectName -> " + regexp);
     }
-    return in != null ? new BufferedReader(new InputStreamReader(in)) : null;
   }
 
   /**
-   * Parses a configuration line. Adds the details into the given section.
+   * Sets the object name of a section from the name cache, without
+   * connecting to the server.
+   *
+   * @param section  The section to find the object name for.
+   * @return <code>true</code> when the cache had the name.
+   * @throws IOException When reading the cache fails.
+   */
+  private boolean findCachedObjectName(Section section) throws IOException {
+    if (section.isCachedName()) return true;
+    StateFile cache = getStateFile("objectnames");
+    if (cache == null) return false;
+    String key = getNameCacheKey(section);
+    String name = cache.get(key, getCacheLifetime());
+    if (name != null) try {
+      if (verbose) System.out.println("Using cached object name -> " + name);
+      section.setObjectName(new ObjectName(name));
+      section.setCachedName(true);
+      return true;
+    } catch (MalformedObjectNameException e) {
+      cache.remove(key);
+    }
+    return false;
+  }
+
+  /**
+   * Returns the key for the object name cache of a section.
+   *
+   * @param section  The section.
+   * @return The key made of URL, section name and regular expression.
+   */
+  private String getNameCacheKey(Section section) {
+    String regexp = params.get("-e");
+    if (regexp == null) regexp = section.getRegexp();
+    return getConnectionDetails(section).getURL() + "|" + section.getName() +
+      "|" + regexp;
+  }
+
+  /**
+   * Returns the lifetime of cached entries.
+   *
+   * @return The lifetime in milliseconds.
+   */
+  private long getCacheLifetime() {
+    String lifetime = params.get("-L");
+    return (lifetime != null ? Long.parseLong(lifetime) : 3600) * 1000L;
+  }
+
+  /**
+   * Returns the named state file within the directory given with
+   * <code>-S</code>. State files are only read once per process.
+   *
+   * @param name  The name of the state file.
+   * @return The state file or <code>null</code> when no directory is given.
+   * @throws IOException When reading the file fails.
+   */
+  private StateFile getStateFile(String name) throws IOException {
+    String dir = params.get("-S");
+    if (dir == null) return null;
+    File file = new File(dir, name + ".state");
+    StateFile res = stateFiles.get(file.getPath());
+    if (res == null) {
+      res = new StateFile(file);
+      StateFile other = stateFiles.putIfAbsent(file.getPath(), res);
+      if (other != null) res = other;
+    }
+    return res;
+  }
+
+  /**
+   * Records the duration of a call made for a section.
+   *
+   * @param phase  The phase of the call, e.g. "read".
+   * @param section  The section the call was made for.
+   * @param member  The member read or invoked, may be <code>null</code>.
+   * @param start  The start of the call as returned by
+   *   {@link System#nanoTime()}.
+   */
+  private void recordTiming(String phase, Section section, String member,
+      long start) {
+    long nanos = System.nanoTime() - start;
+    Histogram histogram = section.getTiming(phase, member);
+    if (histogram == null) {
+      histogram = timings.get(phase, getHostName(section), section.getName(),
+        member);
+      section.setTiming(phase, member, histogram);
+    }
+    histogram.record(nanos / 1000);
+  }
+
+  private void recordTiming(String phase, String host, String section,
+      String member, long start) {
+    timings.record(phase, host, section != null ? section : "", member,
+      System.nanoTime() - start);
+  }
+
+  /**
+   * Appends the timings as JSON objects, with the most time spent first.
+   * Durations are given in milliseconds.
    *
-   * @param section  The parent section.
-   * @param line  The line to parse.
+   * @param sb  The buffer to append to.
+   * @param separator  The separator between the objects.
    */
-  private void parseLine(Section section, String line) {
-    String[] atp = line.split("=", 2);
-    String name = atp[0];
-    // check if we have a special instruction line
-    if (atp.length > 1 && name.startsWith("@")) {
-      String val1 = replaceVariables(atp[1], true);
-      String val2 = replaceVariables(atp[1], false);
-      if (name.equalsIgnoreCase("@object")) section.setObject(val2);
-      if (name.equalsIgnoreCase("@regexp")) section.setRegexp(val2);
-      if (name.equalsIgnoreCase("@url")) section.setURL(val1);
-      if (name.equalsIgnoreCase("@extends")) section.setExtendsName(val1);
-      if (name.equalsIgnoreCase("@user")) section.setUser(val1);
-      if (name.equalsIgnoreCase("@password")) section.setPassword(val1);
-      return;
+  private void appendTimings(StringBuilder sb, String separator) {
+    boolean first = true;
+    for (Map.Entry<String, Histogram> entry : timings.getSorted()) {
+      String[] key = entry.getKey().split("\t", -1);
+      Histogram histogram = entry.getValue();
+      if (!first) sb.append(separator);
+      first = false;
+      sb.append("{\"phase\":");
+      appendJson(sb, key[0]);
+      sb.append(",\"host\":");
+      appendJson(sb, key[1]);
+      sb.append(",\"section\":");
+      appendJson(sb, key[2]);
+      if (key[3].length() > 0) {
+        sb.append(",\"member\":");
+        appendJson(sb, key[3]);
+      }
+      sb.append(",\"count\":").append(histogram.getCount());
+      sb.append(",\"sum\":").append(histogram.getSum() / 1000d);
+      sb.append(",\"max\":").append(histogram.getMax() / 1000d);
+      sb.append(",\"p50\":").append(histogram.getPercentile(0.5) / 1000d);
+      sb.append(",\"p90\":").append(histogram.getPercentile(0.9) / 1000d);
+      sb.append(",\"p99\":").append(histogram.getPercentile(0.99) / 1000d);
+      sb.append('}');
     }
-    // otherwise assume an attribute or an operation
-    String data = atp.length > 1 ? atp[1] : null;
-    // operations have a leading "*" - which would be illegal otherwise
-    MemberDetails details = !line.startsWith("*") ?
-      new AttributeDetails(name, data) :
-      new OperationDetails(name.substring(1), data);
-    section.add(details);
   }
 
   /**
-   * Replaces a system property with a variable.
-   *
-   * @param value  The value to parse and replace within.
-   * @param keepVars  Flag to keep the variable in place.
-   * @return The value with the replaced variables.
+   * Writes the timings as JSON lines to the file given with <code>-T</code>,
+   * or to the console if no file is given. Files are replaced atomically, so
+   * that they can be read while sampling.
    */
-  private String replaceVariables(String value, boolean keepVars) {
-    Matcher m = VARS.matcher(value);
-    StringBuilder res = new StringBuilder();
-    int start = 0;
-    while (m.find()) {
-      res.append(value.substring(start, m.start()));
-      // get variable but remove ${...} in the process
-      String v = value.substring(m.start() + 2, m.end() - 1);
-      String[] vp = v.split("\\|");
-      String defVal = v.length() > 1 ? vp[1] : "";
-      String p = System.getProperty(vp[0], defVal);
-      // replace fully when there is no default
-      if (vp.length == 1 || !keepVars) res.append(p);
-      else {
-        //  otherwise keep place holder but replace default
-        String d = p.length() != 0 ? p : vp[1];
-        res.append("${").append(vp[0]).append("|").append(d).append("}");
+  private void writeTimings() {
+    if (!params.containsKey("-T")) return;
+    String name = params.get("-T");
+    StringBuilder sb = new StringBuilder();
+    appendTimings(sb, lineSeparator);
+    if (sb.length() > 0) sb.append(lineSeparator);
+    if (name == null) {
+      System.err.print(sb);
+      System.err.flush();
+      return;
+    }
+    File file = new File(name);
+    File tmp = new File(file.getPath() + ".tmp");
+    try {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF8");
+      try {
+        writer.write(sb.toString());
+      } finally {
+        writer.close();
       }
-      start = m.end();
+      Files.move(tmp.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.err.println("WARNING: Could not write timings -> " + e);
     }
-    res.append(value.substring(start));
-    return res.toString();
   }
 
   /**
-   * Processes the request.
-   *
-   * @throws IOException When connecting to the host or retrieval fails.
+   * Writes all changed state files.
    */
-  private void createConfig()
-  throws IOException {
-    if (verbose) System.out.println("Creating configuration...");
-    for (Section section : sections) retrieveMembers(section, true);
+  private void saveState() {
+    for (StateFile stateFile : stateFiles.values()) {
+      try {
+        stateFile.save();
+      } catch (IOException e) {
+        System.err.println("WARNING: Could not save state -> " + e);
+      }
+    }
   }
 
   /**
-   * Retrieves all current attributes and operations for a given object.
+   * Queries the object names for a section. The server filters the names
+   * using the query name of the section, unless there is none or a full scan
+   * is requested.
    *
-   * @param section  The section defining the object.
-   * @param close <code>true</code> when the connection should be closed.
-   * @throws IOException When connecting to the host or retrieval fails.
+   * @param section  The section to query the names for.
+   * @param scan  <code>true</code> to retrieve all names of the server.
+   * @return The object names.
+   * @throws IOException When querying the names fails.
    */
-  private void retrieveMembers(Section section, boolean close)
+  private Set<ObjectName> queryNames(Section section, boolean scan)
   throws IOException {
-    openConnection(section);
+    ObjectName query = scan ? null : section.getQueryName();
+    if (query == null && verbose) System.out.println("Scanning all object " +
+      "names for section -> " + section.getName() + (scan ?
+      ", because the query name did not match" :
+      ", because no query name could be derived"));
+    long start = System.nanoTime();
+    Set<ObjectName> names;
     try {
-      // iterate over objects
-      Set<ObjectName> names = connection.queryNames(null, null);
-      for (ObjectName on : names) {
-        if (verbose) System.out.println("checking object -> " + on.getCanonicalName());
-        if (section.matches(on.getCanonicalName())) {
-          if (verbose) System.out.println("match found -> " + on.getCanonicalName());
-          MBeanInfo info;
-          try {
-            info = connection.getMBeanInfo(on);
-          } catch (Exception e) {
-            throw new IOException(e);
-          }
-          addAttributes(section, info);
-          addOperations(section, info);
-        }
-      }
+      names = section.getConnection().queryNames(query, null);
     } finally {
-      closeConnection(section);
+      recordTiming("scan", section, null, start);
     }
+    if (verbose) System.out.println("Query name -> " + query +
+      ", names found -> " + names.size());
+    return names;
   }
 
   /**
-   * Writes the properties file out.
+   * Returns the object names on the server matched by a section. When the
+   * query name of the section finds nothing, all names are scanned.
    *
-   * @throws FileNotFoundException When writing the properties fails.
+   * @param section  The connected section to match.
+   * @return The matching names.
+   * @throws IOException When querying the names fails.
    */
-  private void writeProperties() throws FileNotFoundException {
-    if (verbose) System.out.println("Writing configuration...");
-    OutputStream out = System.out;
-    if (params.containsKey("-f") && !params.containsKey("-x"))
-      out = new FileOutputStream(new File(params.get("-f")));
-    PrintWriter pw = new PrintWriter(out);
-    for (Section section : sections)
-      pw.println(section);
-    pw.close();
+  private List<ObjectName> findMatches(Section section) throws IOException {
+    List<ObjectName> matches = findMatches(section, queryNames(section, false));
+    if (matches.size() == 0 && section.getQueryName() != null)
+      matches = findMatches(section, queryNames(section, true));
+    return matches;
   }
 
   /**
-   * Queries the values for specific attributes and operations.
+   * Returns the object names matched by a section.
    *
-   * @throws IOException When getting the values fails.
+   * @param section  The section to match.
+   * @param names  The names to check.
+   * @return The matching names.
    */
-  private void queryValues() throws IOException {
-    if (verbose) System.out.println("Querying values...");
-    List<Section> querySections = new LinkedList<Section>();
-    if (params.get("-o") != null) {
-      Section section = getSection(params.get("-o"));
-      if (section != null) querySections.add(section);
-      else throw new IOException("No matching section found");
-    } else {
-      querySections.addAll(sections);
-    }
-    String attr = params.get("-q");
-    // iterate over all selected sections
-    for (Section section : querySections) {
-      if (section.getMembers().size() == 0)
-        retrieveMembers(section, false);
-      if (!section.isConnected()) openConnection(section);
-      try {
-        findObjectName(section);
-        if (verbose) System.out.println("Querying object -> " + section.getObject());
-        if (attr != null) {
-          MemberDetails details = section.getMember(attr);
-          getMemberValue(section, details);
-        } else {
-          for (MemberDetails details : section.getMembers())
-            getMemberValue(section, details);
-        }
-      } finally {
-        closeConnection(section);
+  private List<ObjectName> findMatches(Section section, Set<ObjectName> names) {
+    List<ObjectName> res = new ArrayList<ObjectName>();
+    for (ObjectName on : names) {
+      if (verbose) System.out.println("checking object -> " + on.getCanonicalName());
+      if (section.matches(on.getCanonicalName())) {
+        if (verbose) System.out.println("match found -> " + on.getCanonicalName());
+        res.add(on);
       }
     }
+    return res;
   }
 
   /**
-   * Gets the actual value based on the type of the member, i.e. attribute
-   * or operation.
+   * Derives an object name pattern from a regular expression, for example
+   * <code>hadoop:name=RpcActivityForPort.*,service=NameNode</code> becomes
+   * <code>hadoop:name=RpcActivityForPort*,*</code>. A <code>.*</code> or
+   * <code>.+</code> may also match across key properties, so only the
+   * properties up to the first one holding such a wildcard are kept, the
+   * latter as a prefix of its value. Properties that cannot be expressed
+   * with wildcards are left out. The names found with the pattern are still
+   * matched against the expression.
    *
-   * @param section  The section with the object name.
-   * @param details  The member to query.
-   * @return The result as on {@link Object} or <code>null</code>.
-   * @throws IOException When anything fails during the call.
+   * @param regexp  The regular expression.
+   * @return The pattern or <code>null</code> if none can be derived.
    */
-  private Object getMemberValue(Section section, MemberDetails details)
-  throws IOException {
-    Object res = null;
-    try {
-      if (details instanceof AttributeDetails) {
-        res = connection.getAttribute(section.getObjectName(), details.getName());
-      } else if (details instanceof OperationDetails) {
-        res = connection.invoke(section.getObjectName(), details.getName(),
-          new Object[]{}, new String[]{});
-      }
-    } catch (IOException e) {
-      throw e;
-    } catch (Exception e) {
-      if (!params.containsKey("-l"))
-        throw new IOException(e);
+  private String toObjectNamePattern(String regexp) {
+    String re = regexp;
+    if (re.startsWith("^")) re = re.substring(1);
+    if (re.endsWith("$") && !re.endsWith("\\$"))
+      re = re.substring(0, re.length() - 1);
+    // alternatives and groups may span across the key properties
+    if (re.matches(".*[\\[\\](){}|].*")) return null;
+    int colon = re.indexOf(':');
+    if (colon < 0) return null;
+    String domain = toWildcard(re.substring(0, colon));
+    StringBuilder res = new StringBuilder(domain != null ? domain : "*");
+    res.append(":");
+    String props = re.substring(colon + 1);
+    int wildcard = indexOfWildcard(props);
+    // drop everything after the first wildcard, it may match anything
+    if (wildcard >= 0) props = props.substring(0, wildcard + 2);
+    for (String prop : props.split(",")) {
+      int eq = prop.indexOf('=');
+      if (eq <= 0) continue;
+      String key = toWildcard(prop.substring(0, eq));
+      String value = toWildcard(prop.substring(eq + 1));
+      if (key == null || value == null || value.length() == 0 ||
+          key.indexOf('*') >= 0 || key.indexOf('?') >= 0 ||
+          value.startsWith("\"")) continue;
+      res.append(key).append("=").append(value).append(",");
     }
-    if (res != null) details.setValue(res);
-    return res;
+    return res.append("*").toString();
   }
 
   /**
-   * Finds the matching ObjectName when a section has a true pattern.
+   * Returns the position of the first unescaped <code>.*</code> or
+   * <code>.+</code> in a regular expression.
    *
-   * @param section  The section to find the object name for.
-   * @throws IOException When querying the names fails.
+   * @param regexp  The expression to check.
+   * @return The position of the dot, or -1 if there is none.
    */
-  private void findObjectName(Section section)
-  throws IOException {
-    String regexp = params.get("-e");
-    if (regexp == null) regexp = section.getRegexp();
-    if (regexp != null) {
-      // iterate over objects
-      Set<ObjectName> names = connection.queryNames(null, null);
-      for (ObjectName on : names) {
-        if (verbose) System.out.println("checking object -> " + on.getCanonicalName());
-        if (section.matches(on.getCanonicalName())) {
-          if (verbose) System.out.println("match found -> " + on.getCanonicalName());
-          section.setObjectName(on);
-          return;
+  private int indexOfWildcard(String regexp) {
+    for (int n = 0; n < regexp.length() - 1; n++) {
+      char c = regexp.charAt(n);
+      char next = regexp.charAt(n + 1);
+      if (c == '\\') n++;
+      else if (c == '.' && (next == '*' || next == '+')) return n;
+    }
+    return -1;
+  }
+
+  /**
+   * Converts a simple regular expression into a wildcard expression.
+   *
+   * @param regexp  The expression to convert.
+   * @return The wildcard expression or <code>null</code> when the expression
+   *   is too complex.
+   */
+  private String toWildcard(String regexp) {
+    StringBuilder res = new StringBuilder();
+    for (int n = 0; n < regexp.length(); n++) {
+      char c = regexp.charAt(n);
+      char next = n + 1 < regexp.length() ? regexp.charAt(n + 1) : 0;
+      if (c == '\\') {
+        if (next == 0 || Character.isLetterOrDigit(next)) return null;
+        res.append(next);
+        n++;
+      } else if (c == '.') {
+        if (next == '*') {
+          res.append('*');
+          n++;
+        } else if (next == '+') {
+          res.append("?*");
+          n++;
+        } else {
+          res.append('?');
         }
+      } else if ("*+?^$".indexOf(c) >= 0) {
+        return null;
+      } else {
+        res.append(c);
       }
-      throw new IOException("Could not find matching ObjectName -> " + regexp);
     }
+    return res.toString();
   }
 
   /**
    * Outputs the query results.
    */
-  private void outputResults() {
+  void outputResults() throws IOException {
     if (verbose) System.out.println("Printing results..." + lineSeparator);
-    PrintWriter writer = new PrintWriter(System.out);
-    for (Section section : sections) section.printValues(writer);
-    writer.println();
-    writer.close();
+    OutputWriter writer = createOutputWriter(false);
+    long time = System.currentTimeMillis();
+    for (Section section : sections)
+      if (section.hasValues()) writer.write(section, time);
+    writer.finish();
+  }
+
+  /**
+   * Creates the writer for the output format given with <code>-O</code>.
+   *
+   * @param sampling  <code>true</code> when writing samples.
+   * @return The output writer.
+   * @throws IOException When the format is unknown.
+   */
+  OutputWriter createOutputWriter(boolean sampling) throws IOException {
+    String format = params.get("-O");
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF8"),
+      65536);
+    if (format == null || format.equals("cacti"))
+      return new CactiWriter(writer, sampling);
+    if (format.equals("json")) return new JsonWriter(writer);
+    if (format.equals("csv")) return new CsvWriter(writer);
+    if (format.equals("graphite")) return new GraphiteWriter(writer);
+    throw new IOException("Unknown output format -> " + format);
+  }
+
+  /**
+   * Returns the object name a section resolved to.
+   *
+   * @param section  The section.
+   * @return The object name, or <code>null</code> if it is a pattern or
+   *   not valid.
+   */
+  private ObjectName getResolvedName(Section section) {
+    try {
+      ObjectName on = section.getObjectName();
+      return on != null && !on.isPattern() ? on : null;
+    } catch (MalformedObjectNameException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the key properties of an object name in canonical order, with
+   * quoted values unquoted.
+   *
+   * @param on  The object name.
+   * @return The key properties.
+   */
+  private static Map<String, String> getKeyProperties(ObjectName on) {
+    Map<String, String> res = new TreeMap<String, String>();
+    for (Map.Entry<String, String> prop : on.getKeyPropertyList().entrySet()) {
+      String value = prop.getValue();
+      if (value.startsWith("\"")) value = ObjectName.unquote(value);
+      res.put(prop.getKey(), value);
+    }
+    return res;
   }
 
   /**
-   * Opens the connection to the JMX host.
+   * Resolves the URL and credentials to use for a section.
    *
    * @param section  The optional section with a specific URL.
-   * @throws IOException When the connection fails.
+   * @return The connection details.
    */
-  private void openConnection(Section section) throws IOException {
+  ConnectionDetails getConnectionDetails(Section section) {
     // get global connection and then the specific one if given
     String url = params.get("-u");
     if (section != null && section.getURL() != null)
       url = section.getURL();
-    // create connection URL
-    jmxUrl = new JMXServiceURL(replaceVariables(url, false));
+    if (url != null) url = replaceVariables(url, false, section);
     // add credentials if given
-    Map<String, String[]> m = new HashMap<String, String[]>();
     String user = params.get("-c");
     if (section != null && section.getUser() != null)
       user = section.getUser();
+    if (user != null) user = replaceVariables(user, false, section);
     String pass = params.get("-p");
     if (section != null && section.getPassword() != null)
       pass = section.getPassword();
-    if (user != null)
-      m.put(JMXConnector.CREDENTIALS, new String[]{ replaceVariables(user, false),
-        pass != null ? replaceVariables(pass, false) : null });
-    // create JMX connection
-    connector = JMXConnectorFactory.connect(jmxUrl, m);
-    connection = connector.getMBeanServerConnection();
-    if (section != null) section.setConnected(true);
+    if (pass != null) pass = replaceVariables(pass, false, section);
+    return new ConnectionDetails(url, user, pass);
+  }
+
+  /**
+   * Opens the connection to the JMX host. Connections are shared between all
+   * sections that resolve to the same URL and credentials, i.e. only the
+   * first call for a given host actually connects.
+   *
+   * @param section  The optional section with a specific URL.
+   * @return The connection to the JMX server.
+   * @throws IOException When the connection fails.
+   */
+  private MBeanServerConnection openConnection(Section section)
+  throws IOException {
+    ConnectionDetails cd = getConnectionDetails(section);
+    // reuse an existing JMX connection if possible
+    JMXConnector connector = connectors.get(cd.getKey());
+    if (connector == null) {
+      checkAbandoned(section);
+      if (verbose) System.out.println("Connecting to -> " + cd);
+      Map<String, String[]> m = new HashMap<String, String[]>();
+      if (cd.getUser() != null)
+        m.put(JMXConnector.CREDENTIALS,
+          new String[]{ cd.getUser(), cd.getPassword() });
+      long start = System.nanoTime();
+      try {
+        connector = JMXConnectorFactory.connect(new JMXServiceURL(cd.getURL()), m);
+      } finally {
+        recordTiming("connect", getHostName(cd.getURL()),
+          section != null ? section.getName() : null, null, start);
+      }
+      JMXConnector other = connectors.putIfAbsent(cd.getKey(), connector);
+      if (other != null) {
+        // lost a race against another thread, use its connection instead
+        connector.close();
+        connector = other;
+      } else if (section != null && section.isAbandoned()) {
+        // the query was abandoned meanwhile, and may have missed this one
+        connectors.remove(cd.getKey(), connector);
+        connector.close();
+        checkAbandoned(section);
+      }
+    } else if (verbose) System.out.println("Reusing connection -> " + cd);
+    MBeanServerConnection connection = connector.getMBeanServerConnection();
+    if (section != null) {
+      section.setConnection(connection);
+      if (section.getHostName() == null)
+        section.setHostName(getHostName(cd.getURL()));
+    }
+    return connection;
+  }
+
+  /**
+   * Fails when the query of a section was abandoned after its deadline.
+   *
+   * @param section  The optional section.
+   * @throws IOException When the query was abandoned.
+   */
+  private void checkAbandoned(Section section) throws IOException {
+    if (section != null && section.isAbandoned())
+      throw new IOException("Query abandoned, section -> " + section.getName());
   }
 
   /**
-   * Closes the connection.
+   * Releases the connection. The underlying JMX connector stays open for
+   * other sections, see {@link #closeConnections()}.
    *
    * @param section  The optional section with a specific URL.
-   * @throws IOException When closing the connection fails.
    */
-  private void closeConnection(Section section) throws IOException {
-    if (connector != null) connector.close();
-    if (section != null) section.setConnected(false);
+  private void closeConnection(Section section) {
+    if (section != null) section.setConnection(null);
+  }
+
+  /**
+   * Closes and forgets the JMX connectors used by the sections of this run.
+   */
+  private void evictConnections() {
+    for (Section section : sections) {
+      JMXConnector connector =
+        connectors.remove(getConnectionDetails(section).getKey());
+      if (connector != null) try {
+        connector.close();
+      } catch (IOException e) {
+        // ignore, the connection is broken anyways
+      }
+    }
+  }
+
+  /**
+   * Closes all JMX connectors that were opened during this run.
+   */
+  void closeConnections() {
+    for (JMXConnector connector : connectors.values()) {
+      try {
+        connector.close();
+      } catch (IOException e) {
+        System.err.println("WARNING: Could not close connection -> " + e);
+      }
+    }
+    connectors.clear();
   }
 
   /**
@@ -980,12 +5592,19 @@ public class JMXToolkit {
   private void addAttributes(Section section, MBeanInfo info) {
     for (MBeanAttributeInfo mbi : info.getAttributes()) {
       String name = mbi.getName();
+      // add the leaf paths of composites, if their structure is known
+      OpenType<?> openType = getOpenType(mbi);
+      if (openType instanceof CompositeType) {
+        addPaths(section, name, (CompositeType) openType);
+        continue;
+      }
       String atr = mbi.getType();
       String at = atr;
       if (atr != null) {
         String[] atp = atr.split("\\.");
         at = atp[atp.length - 1];
         if (at.equals("int")) at = "Integer";
+        if (at.startsWith("CompositeData")) at = "Composite";
       }
       if (verbose) System.out.println("attribute name -> " + name +
         ", type -> " + at + ", raw type -> " + atr);
@@ -1001,6 +5620,50 @@ public class JMXToolkit {
     }
   }
 
+  /**
+   * Returns the open type of an attribute, which is either given directly
+   * or, for MXBeans, in its descriptor.
+   *
+   * @param mbi  The attribute info.
+   * @return The open type or <code>null</code> if it is unknown.
+   */
+  private OpenType<?> getOpenType(MBeanAttributeInfo mbi) {
+    if (mbi instanceof OpenMBeanAttributeInfo)
+      return ((OpenMBeanAttributeInfo) mbi).getOpenType();
+    Object type = mbi.getDescriptor() != null ?
+      mbi.getDescriptor().getFieldValue("openType") : null;
+    return type instanceof OpenType ? (OpenType<?>) type : null;
+  }
+
+  /**
+   * Adds the paths to all simple values of a composite attribute.
+   *
+   * @param section  The section to add the details to.
+   * @param prefix  The attribute name or path of the composite.
+   * @param type  The type of the composite.
+   */
+  private void addPaths(Section section, String prefix, CompositeType type) {
+    for (String key : type.keySet()) {
+      OpenType<?> itemType = type.getType(key);
+      String path = prefix + "." + key;
+      if (itemType instanceof CompositeType) {
+        addPaths(section, path, (CompositeType) itemType);
+      } else if (itemType instanceof SimpleType) {
+        String at = itemType.getClassName();
+        at = at.substring(at.lastIndexOf('.') + 1);
+        ReturnTypes returnType = ReturnTypes.NONE;
+        try {
+          returnType = ReturnTypes.valueOf(at.toUpperCase());
+        } catch (IllegalArgumentException e) {
+          // keep the value untyped
+        }
+        if (verbose) System.out.println("attribute path -> " + path +
+          ", type -> " + at);
+        section.add(new AttributeDetails(path, returnType));
+      }
+    }
+  }
+
   /**
    * Extracts the details about the available operations.
    *
@@ -1032,47 +5695,224 @@ public class JMXToolkit {
   }
 
   /**
-   * Walks the remote JMX objects.
+   * Walks the remote JMX objects, printing one JSON object per line for
+   * every MBean as soon as it is done. The objects can be limited with an
+   * ObjectName pattern or domain given with <code>-o</code>, and a regular
+   * expression given with <code>-e</code>. Up to <code>-P</code> objects are
+   * read concurrently over the shared connection, fetching all attributes of
+   * an object in one call.
    *
    * @throws IOException When opening the JMX connection fails.
-   * @throws javax.management.InstanceNotFoundException When querying the JMX MBeans fails.
-   * @throws javax.management.IntrospectionException When querying the JMX MBeans fails.
-   * @throws javax.management.ReflectionException When querying the JMX MBeans fails.
-   */
-  private void walk()
-  throws IOException, IntrospectionException, InstanceNotFoundException, ReflectionException {
-    openConnection(null);
-    Set<ObjectName> names = connection.queryNames(null, null);
-    for (ObjectName on : names) {
-      System.out.println("object -> " + on.getCanonicalName());
-      MBeanInfo info = connection.getMBeanInfo(on);
-      for (MBeanAttributeInfo mbi : info.getAttributes()) {
-        System.out.println("  attribute name -> " + mbi.getName() + ", type -> " + mbi.getClass());
-        try {
-          Object attr = connection.getAttribute(on, mbi.getName());
-          if (attr instanceof CompositeDataSupport) {
-            CompositeDataSupport cds2 = (CompositeDataSupport) attr;
-            Set<String> keys = cds2.getCompositeType().keySet();
-            for (String key : keys) {
-              System.out.println("  attribute value -> " + key + " " + cds2.get(key));
-            }
-          } else {
-            if (attr.getClass().isArray()) {
-              Object[] a = (Object[]) attr;
-              for (int i = 0; i < a.length; i++) {
-                System.out.println("  attribute value[" + i + "] -> " + a[i]);
+   */
+  private void walk() throws IOException {
+    final Section section = new Section("walk");
+    MBeanServerConnection connection = openConnection(section);
+    try {
+      ObjectName pattern = null;
+      String object = params.get("-o");
+      if (object != null) try {
+        pattern = new ObjectName(object.indexOf(':') >= 0 ? object :
+          object + ":*");
+      } catch (MalformedObjectNameException e) {
+        throw new IOException(e);
+      }
+      String regexp = params.get("-e");
+      Pattern filter = regexp != null ? Pattern.compile(regexp) : null;
+      List<ObjectName> names = new ArrayList<ObjectName>();
+      long start = System.nanoTime();
+      Set<ObjectName> found = connection.queryNames(pattern, null);
+      recordTiming("scan", section, null, start);
+      for (ObjectName on : found)
+        if (filter == null || filter.matcher(on.getCanonicalName()).matches())
+          names.add(on);
+      if (verbose) System.out.println("Walking objects -> " + names.size());
+      int threads = params.get("-P") != null ?
+        Integer.parseInt(params.get("-P")) : 1;
+      ExecutorService executor = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(threads, names.size())), createThreadFactory());
+      try {
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final ObjectName on : names) {
+          final MBeanServerConnection conn = connection;
+          futures.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+              String line = walkObject(conn, section, on);
+              synchronized (out) {
+                out.println(line);
+                out.flush();
               }
-            } else {
-              System.out.println("  attribute value -> " + attr.toString());
+              return null;
             }
+          }));
+        }
+        for (Future<?> future : futures) {
+          try {
+            future.get();
+          } catch (ExecutionException e) {
+            System.err.println("WARNING: Walk failed -> " + e.getCause());
           }
-        } catch (Exception e) {
-          System.err.println("Error reading attribute -> " + mbi.getName());
-          if (verbose) e.printStackTrace(System.err);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        executor.shutdownNow();
+      }
+    } finally {
+      closeConnection(section);
+    }
+  }
+
+  /**
+   * Reads the details and all attributes of one object. Attributes missing
+   * from the batch are read again singly to report their errors.
+   *
+   * @param connection  The connection to use.
+   * @param section  The section to record the timings for.
+   * @param on  The object to read.
+   * @return The object as a JSON object on one line.
+   * @throws IOException When talking to the server fails.
+   */
+  private String walkObject(MBeanServerConnection connection, Section section,
+      ObjectName on)
+  throws IOException {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"object\":");
+    appendJson(sb, on.getCanonicalName());
+    MBeanInfo info;
+    long start = System.nanoTime();
+    try {
+      info = connection.getMBeanInfo(on);
+      recordTiming("info", section, null, start);
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      sb.append(",\"error\":");
+      appendJson(sb, e.toString());
+      return sb.append('}').toString();
+    }
+    sb.append(",\"class\":");
+    appendJson(sb, info.getClassName());
+    List<String> names = new ArrayList<String>();
+    for (MBeanAttributeInfo mbi : info.getAttributes())
+      if (mbi.isReadable()) names.add(mbi.getName());
+    Map<String, Object> values = new HashMap<String, Object>();
+    if (names.size() > 0) {
+      start = System.nanoTime();
+      try {
+        AttributeList list = connection.getAttributes(on,
+          names.toArray(new String[names.size()]));
+        for (Attribute attribute : list.asList())
+          values.put(attribute.getName(), attribute.getValue());
+        recordTiming("read", section, null, start);
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        if (verbose) System.out.println("Batch read failed -> " + e);
+      }
+    }
+    Map<String, String> errors = new LinkedHashMap<String, String>();
+    sb.append(",\"attributes\":{");
+    boolean first = true;
+    for (String name : names) {
+      Object value;
+      if (values.containsKey(name)) {
+        value = values.get(name);
+      } else try {
+        start = System.nanoTime();
+        value = connection.getAttribute(on, name);
+        recordTiming("read", section, name, start);
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        errors.put(name, e.toString());
+        continue;
+      }
+      if (!first) sb.append(',');
+      first = false;
+      appendJson(sb, name);
+      sb.append(':');
+      appendJson(sb, value);
+    }
+    sb.append('}');
+    if (errors.size() > 0) {
+      sb.append(",\"errors\":");
+      appendJson(sb, errors);
+    }
+    return sb.append('}').toString();
+  }
+
+  /**
+   * Appends a value as JSON. Composite and tabular data become objects and
+   * arrays of objects, arrays become arrays, and anything else that is not a
+   * number or boolean becomes a string.
+   *
+   * @param sb  The buffer to append to.
+   * @param value  The value, may be <code>null</code>.
+   */
+  private static void appendJson(StringBuilder sb, Object value) {
+    if (value == null) {
+      sb.append("null");
+    } else if (value instanceof Long || value instanceof Integer ||
+        value instanceof Short || value instanceof Byte) {
+      sb.append(((Number) value).longValue());
+    } else if (value instanceof Number) {
+      double d = ((Number) value).doubleValue();
+      if (Double.isNaN(d) || Double.isInfinite(d)) appendJson(sb, value.toString());
+      else sb.append(value);
+    } else if (value instanceof Boolean) {
+      sb.append(value);
+    } else if (value instanceof CompositeData) {
+      CompositeData cd = (CompositeData) value;
+      sb.append('{');
+      boolean first = true;
+      for (String key : cd.getCompositeType().keySet()) {
+        if (!first) sb.append(',');
+        first = false;
+        appendJson(sb, key);
+        sb.append(':');
+        appendJson(sb, cd.get(key));
+      }
+      sb.append('}');
+    } else if (value instanceof TabularData) {
+      appendJson(sb, ((TabularData) value).values().toArray());
+    } else if (value instanceof Map) {
+      sb.append('{');
+      boolean first = true;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        if (!first) sb.append(',');
+        first = false;
+        appendJson(sb, String.valueOf(entry.getKey()));
+        sb.append(':');
+        appendJson(sb, entry.getValue());
+      }
+      sb.append('}');
+    } else if (value.getClass().isArray()) {
+      sb.append('[');
+      int length = Array.getLength(value);
+      for (int n = 0; n < length; n++) {
+        if (n > 0) sb.append(',');
+        appendJson(sb, Array.get(value, n));
+      }
+      sb.append(']');
+    } else {
+      String s = value.toString();
+      sb.append('"');
+      for (int n = 0; n < s.length(); n++) {
+        char c = s.charAt(n);
+        switch (c) {
+          case '"': sb.append("\\\""); break;
+          case '\\': sb.append("\\\\"); break;
+          case '\n': sb.append("\\n"); break;
+          case '\r': sb.append("\\r"); break;
+          case '\t': sb.append("\\t"); break;
+          default:
+            if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
         }
       }
+      sb.append('"');
     }
-    closeConnection(null);
   }
 
   /**
@@ -1082,13 +5922,24 @@ public class JMXToolkit {
     System.out.println("Usage: JMXToolkit [-a <action>] [-c <user>]" +
       " [-p <password>] [-u url] [-f <config>] [-o <object>]\n" +
       " [-e regexp] [-i <extends>] [-q <attr-oper>] [-w <check>]" +
-      " [-m <message>] [-x] [-l] [-v] [-h]\n\n" +
+      " [-m <message>] [-P <threads>] [-t <seconds>] [-s <port>] [-y <options>]\n" +
+      " [-S <state-dir>] [-L <seconds>] [-C <seconds>] [-I <seconds>] [-J <seconds>] [-n <count>]\n" +
+      " [-M <seconds>] [-N <command-file>] [-T [<file>]] [-O <format>] [-H] [-R <tiers>] [-F <time>] [-U <time>]\n" +
+      " [-r <resolution>] [-B <events>] [-D<name>=<value>] [-x] [-l] [-v] [-h]\n\n" +
       "\t-a <action>\tAction to perform, can be one of the following (default: query)\n\n" +
       "\t\t\tcreate\tScan a JMX object for available attributes\n" +
       "\t\t\tquery\tQuery a set of attributes from the given objects\n" +
+      "\t\t\tsample\tQuery the attributes continuously (see -I, -J and -n below)\n" +
       "\t\t\tcheck\tChecks a given value to be in a valid range (see -w below)\n" +
+      "\t\t\tcheckall\tChecks all values that have checks defined (see -N below)\n" +
+      "\t\t\tcompile\tWrites a binary form of the config to <config>.bin for faster loading\n" +
       "\t\t\tencode\tHelps creating the encoded messages (see -m and -w below)\n" +
-      "\t\t\twalk\tWalk the entire remote object list\n\n" +
+      "\t\t\twalk\tWalk the remote objects as JSON lines (see -o, -e and -P below)\n" +
+      "\t\t\tserve\tAnswer query, check and \"stats\" requests line by line (see -s below)\n" +
+      "\t\t\texpose\tServe the values as Prometheus metrics over HTTP (see -s and -M below)\n" +
+      "\t\t\tsimulate\tServe synthetic MBeans for the config's objects (see -s and -y below)\n" +
+      "\t\t\thistory\tPrint the values recorded with -H (see -F, -U, -r, -o and -q below)\n" +
+      "\t\t\tsubscribe\tPrint the notifications of the objects as they arrive (see -n and -B below)\n\n" +
       "\t-c <user>\tThe user role to authenticate with (default: controlRole)\n" +
       "\t-p <password>\tThe password to authenticate with (default: password)\n" +
       "\t-u <url>\tThe JMX URL (default: service:jmx:rmi:///jndi/rmi://localhost:10001/jmxrmi)\n" +
@@ -1104,8 +5955,38 @@ public class JMXToolkit {
       "\t\tExample for Nagios and DFS used (in %):\n\n" +
       "\t\t        0:OK%3A%20%7B0%7D|2:WARN%3A%20%7B0%7D:80:>=|1:FAIL%3A%20%7B0%7D:95:>\n\n" +
       "\t\tNotes: Messages are URL-encoded to allow for any character being used. The current value\n" +
-      "\t\t       can be placed with {0} in the message. Allowed comparators: <,<=,=,==,>=,>\n\n" +
+      "\t\t       can be placed with {0} in the message. Allowed comparators: <,<=,=,==,!=,>=,>\n" +
+      "\t\t       Instead of value and comparator a Nagios range can be given, e.g. 10:20 alerts\n" +
+      "\t\t       outside, @10:20 inside of the range. Use ~ for negative infinity.\n\n" +
       "\t-m <message>\tThe message to encode for further use (default: none)\n" +
+      "\t-P <threads>\tQuery up to this many hosts in parallel (default: 1)\n" +
+      "\t-t <seconds>\tDeadline per host, also without -P (default: none)\n" +
+      "\t-s <port>\tThe local port to serve requests on (default: none, use console),\n" +
+      "\t\t\tor [<address>:]<port> to serve metrics on (default: loopback, 9404),\n" +
+      "\t\t\tor the first port to simulate all sections on (default: the port of each @url)\n" +
+      "\t-y <options>\tSimulator options as <name>=<value>,... with the names endpoints, copies,\n" +
+      "\t\t\tattributes, latency, jitter (in ms), failures (0-1) and churn (in seconds)\n" +
+      "\t-S <state-dir>\tDirectory to keep caches between runs in (default: none)\n" +
+      "\t-L <seconds>\tLifetime of cached entries (default: 3600)\n" +
+      "\t-C <seconds>\tMaximum age of shared MBean snapshots, needs -S (default: none)\n" +
+      "\t-I <seconds>\tInterval between samples, unless set with @interval (default: 10)\n" +
+      "\t-J <seconds>\tMaximum random offset of each section's schedule (default: 0)\n" +
+      "\t-n <count>\tNumber of samples to take per section, or events to print (default: unlimited)\n" +
+      "\t-M <seconds>\tMaximum age of the values served as metrics (default: 0)\n" +
+      "\t-N <command-file>\tNagios command file to write passive check results to (default: none)\n" +
+      "\t-T [<file>]\tWrite the timings of all calls as JSON lines, to the console if no file is given\n" +
+      "\t-O <format>\tOutput format of query, sample, history and subscribe, one of cacti, json, csv\n" +
+      "\t\t\tor graphite (default: cacti)\n" +
+      "\t-H\t\tRecord the sampled values in <state-dir>/history, needs -S\n" +
+      "\t-R <tiers>\tRollup tiers to record with -H as <window>[:<retention>],... e.g. raw:2d,1m:7d,1h:365d\n" +
+      "\t\t\tkeeping min, max, avg, count and last per window (default: none)\n" +
+      "\t-F <time>\tStart of the history to print, as epoch millis, age (e.g. 30m, 12h, 7d)\n" +
+      "\t\t\tor UTC date and time (e.g. 2010-05-01T12:00) (default: one hour before -U)\n" +
+      "\t-U <time>\tEnd of the history to print (default: now)\n" +
+      "\t-r <resolution>\tResolution of the history to print, selects the coarsest rollup tier\n" +
+      "\t\t\twith a window up to it, e.g. 10m (default: a 1440th of the range)\n" +
+      "\t-B <events>\tNumber of notifications to buffer before dropping them (default: 10000)\n" +
+      "\t-D<name>=<value>\tSets a variable, takes precedence over system properties\n" +
       "\t-x\t\tOutput config to console (do not write back to -f <config>)\n" +
       "\t-l\t\tIgnore missing attributes, do not throw an error\n" +
       "\t-v\t\tVerbose output\n" +
@@ -1126,7 +6007,10 @@ public class JMXToolkit {
     }
     // read command line arguments
     for (int n = 0; n < args.length; n++) {
-      if (args[n].startsWith("-")) {
+      if (args[n].startsWith("-D") && args[n].indexOf('=') > 2) {
+        String[] vp = args[n].substring(2).split("=", 2);
+        variables.put(vp[0], vp[1]);
+      } else if (args[n].startsWith("-")) {
         String key = args[n];
         String val = null;
         if (args.length > n+1 && !args[n+1].startsWith("-")) val = args[++n];
@@ -1170,25 +6054,48 @@ public class JMXToolkit {
     try {
       new JMXToolkit(args);
     } catch (NullPointerException e) {
-      System.out.println("Missing parameter (either -u or -f _must_ be given). " + e);
+      error = getErrorCode(e, System.out);
       e.printStackTrace();
-      error = 1;
-    } catch (MalformedURLException e) {
-      System.out.println("Bad JMX URI. " + e);
-      error = 2;
     } catch (InstanceNotFoundException e) {
-      System.out.println("Instance not found. " + e);
-      error = 3;
+      error = getErrorCode(e, System.out);
     } catch (IntrospectionException e) {
-      System.out.println("Introspection error. " + e);
-      error = 4;
+      error = getErrorCode(e, System.out);
     } catch (ReflectionException e) {
-      System.out.println("Reflection error. " + e);
-      error = 5;
+      error = getErrorCode(e, System.out);
     } catch (IOException e) {
-      System.out.println("IO error. " + e);
-      error = 6;
+      error = getErrorCode(e, System.out);
     }
     System.exit(error);
   }
+
+  /**
+   * Prints the error message and returns the matching exit code.
+   *
+   * @param e  The error that occurred.
+   * @param out  The stream to print the message to.
+   * @return The exit code.
+   */
+  private static int getErrorCode(Exception e, PrintStream out) {
+    if (e instanceof NullPointerException) {
+      out.println("Missing parameter (either -u or -f _must_ be given). " + e);
+      return 1;
+    } else if (e instanceof MalformedURLException) {
+      out.println("Bad JMX URI. " + e);
+      return 2;
+    } else if (e instanceof InstanceNotFoundException) {
+      out.println("Instance not found. " + e);
+      return 3;
+    } else if (e instanceof IntrospectionException) {
+      out.println("Introspection error. " + e);
+      return 4;
+    } else if (e instanceof ReflectionException) {
+      out.println("Reflection error. " + e);
+      return 5;
+    } else if (e instanceof IOException) {
+      out.println("IO error. " + e);
+      return 6;
+    }
+    out.println("Error. " + e);
+    return -99;
+  }
 }
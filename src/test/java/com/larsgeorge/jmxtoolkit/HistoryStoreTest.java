@@ -0,0 +1,166 @@
+/**
+ * Copyright 2010 Lars George
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.larsgeorge.jmxtoolkit;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes points through the compressed encoding of the history store and
+ * reads them back, checking that every time and value survives unchanged.
+ *
+ * @author Lars George
+ */
+public class HistoryStoreTest {
+
+  // 2010-06-10T00:00 UTC, all points stay within this day
+  private static final long BASE = 1276128000000L;
+
+  private File dir = null;
+  private List<Long> times = new ArrayList<Long>();
+  private List<Double> values = new ArrayList<Double>();
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("history").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = dir.listFiles();
+    if (files != null) for (File file : files) file.delete();
+    dir.delete();
+  }
+
+  @Test
+  public void testDeltaOfDeltaBuckets() throws IOException {
+    // the edges of the 7, 9 and 12 bit buckets, and the 32 bit case
+    long[] dods = { 0, -63, 64, -64, 65, -255, 256, -256, 257, -2047, 2048,
+      -2048, 2049, 100000, -100000, 0, 1, -1 };
+    long time = BASE;
+    long delta = 10000;
+    add(time, 1);
+    time += delta;
+    add(time, 2);
+    for (long dod : dods) {
+      delta += dod;
+      time += delta;
+      add(time, 3);
+    }
+    writeAndVerify(new HistoryStore(dir, HistoryStore.DAY, 0));
+  }
+
+  @Test
+  public void testXorWindows() throws IOException {
+    double[] vals = {
+      100.0, 100.0,        // no change
+      100.5, 100.25,       // the second fits into the window of the first
+      100.125, 100.0625,   // and so on
+      -3.0e100, 7.0e-300,  // a new, wider window
+      1.0, 1.0000000000000002, 1.0,
+      0.0, -0.0, Double.MIN_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE };
+    for (int n = 0; n < vals.length; n++) add(BASE + n * 1000L, vals[n]);
+    writeAndVerify(new HistoryStore(dir, HistoryStore.DAY, 0));
+  }
+
+  @Test
+  public void testSpecialValues() throws IOException {
+    double[] vals = { Double.NaN, Double.NaN, 1.5, Double.POSITIVE_INFINITY,
+      Double.NEGATIVE_INFINITY, Double.NaN, Double.POSITIVE_INFINITY, 0 };
+    for (int n = 0; n < vals.length; n++) add(BASE + n * 1000L, vals[n]);
+    writeAndVerify(new HistoryStore(dir, HistoryStore.DAY, 0));
+  }
+
+  @Test
+  public void testRandomBlocks() throws IOException {
+    // more points than fit into one block, with irregular intervals
+    Random random = new Random(42);
+    long time = BASE;
+    double value = 0;
+    for (int n = 0; n < 1000; n++) {
+      time += 9000 + random.nextInt(2000);
+      value += random.nextInt(5) == 0 ? random.nextGaussian() * 1000 : 0;
+      add(time, value);
+    }
+    writeAndVerify(new HistoryStore(dir));
+  }
+
+  @Test
+  public void testReopenSegment() throws IOException {
+    for (int n = 0; n < 100; n++) add(BASE + n * 10000L, n * 0.5);
+    HistoryStore store = new HistoryStore(dir);
+    write(store, 0, times.size());
+    store.close();
+    for (int n = 100; n < 200; n++) add(BASE + n * 10000L, n * 0.5);
+    // a later process appends to the existing segment of the same day
+    store = new HistoryStore(dir);
+    write(store, 100, times.size());
+    store.close();
+    assertEquals(1, dir.list().length);
+    verify();
+  }
+
+  private void add(long time, double value) {
+    times.add(time);
+    values.add(value);
+  }
+
+  private void writeAndVerify(HistoryStore store) throws IOException {
+    write(store, 0, times.size());
+    store.close();
+    verify();
+  }
+
+  private void write(HistoryStore store, int from, int until)
+  throws IOException {
+    for (int n = from; n < until; n++)
+      store.append("key", times.get(n), values.get(n));
+  }
+
+  private void verify() throws IOException {
+    final List<Long> readTimes = new ArrayList<Long>();
+    final List<Double> readValues = new ArrayList<Double>();
+    HistoryStore.read(dir, BASE, BASE + HistoryStore.DAY - 1,
+      new HistoryStore.Visitor() {
+        @Override
+        public boolean accept(String key) {
+          return key.equals("key");
+        }
+
+        @Override
+        public void point(String key, long time, double value) {
+          readTimes.add(time);
+          readValues.add(value);
+        }
+      });
+    assertEquals(times, readTimes);
+    assertEquals(values.size(), readValues.size());
+    for (int n = 0; n < values.size(); n++)
+      assertEquals("value " + n, Double.doubleToLongBits(values.get(n)),
+        Double.doubleToLongBits(readValues.get(n)));
+  }
+}